@@ -125,17 +125,76 @@ Database = (function() {
   };
 
   Database.prototype._getStuff = function(args) {
-    var error, newSuccess, query, success, type;
-    query = args.query, type = args.type, success = args.success, error = args.error;
+    var error, newSuccess, preview, query, success, type;
+    query = args.query, type = args.type, success = args.success, error = args.error, preview = args.preview;
     newSuccess = function(dbData) {
-      return success(dbData, args);
+      return Database.prototype._unspill(dbData, function(rows) {
+        return success(rows, args);
+      }, error);
     };
     console.log(query);
+    if (preview) {
+      return forge.internal.call('database.preview', {
+        query: query,
+        columns: [Database.prototype.TEXT_COL],
+        length: preview
+      }, newSuccess, error);
+    }
     return forge.internal.call('database.query', {
       query: query
     }, newSuccess, error);
   };
 
+  Database.prototype._pageSpill = function(result, page, done, error) {
+    var read;
+    if (!(result && result.spill)) {
+      page(result);
+      return done();
+    }
+    read = function() {
+      return forge.internal.call('database.readSpill', {
+        spill: result.spill
+      }, function(chunk) {
+        page(chunk.rows);
+        if (chunk.done) {
+          return done();
+        } else {
+          return read();
+        }
+      }, function(e) {
+        forge.internal.call('database.closeSpill', {
+          spill: result.spill
+        });
+        if (error) return error(e);
+      });
+    };
+    return read();
+  };
+
+  Database.prototype._unspill = function(result, success, error) {
+    var rows;
+    if (!(result && result.spill)) return success(result);
+    rows = [];
+    return Database.prototype._pageSpill(result, function(chunk) {
+      return rows.push.apply(rows, chunk);
+    }, function() {
+      return success(rows);
+    }, error);
+  };
+
+  Database.prototype._unspillAll = function(results, success, error) {
+    var next;
+    results = results.slice();
+    next = function(i) {
+      if (i >= results.length) return success(results);
+      return Database.prototype._unspill(results[i], function(rows) {
+        results[i] = rows;
+        return next(i + 1);
+      }, error);
+    };
+    return next(0);
+  };
+
   Entities = (function() {
 
     Entities.name = 'Entities';
@@ -168,6 +227,15 @@ Database = (function() {
       return Database.prototype._getStuff(args);
     };
 
+    Entities.prototype.complete = function(args) {
+      args || (args = {});
+      return forge.internal.call('database.complete', {
+        prefix: args.prefix || '',
+        kind: this._type,
+        limit: args.limit || 10
+      }, args.success, args.error);
+    };
+
     return Entities;
 
   })();
@@ -192,6 +260,15 @@ Database = (function() {
   */
 
 
+  Database.prototype.writeBehind = function(on, options) {
+    options || (options = {});
+    return forge.internal.call('database.writeBehind', {
+      on: Boolean(on),
+      flushMillis: options.flushMillis,
+      maxPending: options.maxPending
+    }, options.success, options.error);
+  };
+
   Database.prototype.callAsync = function(calls, context) {
     var collection, currentCall, error, func, method, model, options, success, _ref;
     if (calls.length) {
@@ -221,25 +298,43 @@ Database = (function() {
 
   Database.prototype.notes = {
     create: function(model, options) {
-      var error, success,
+      var error, models, queries, steps, success, _i, _len, _ref,
         _this = this;
       options || (options = {});
       success = options.success, error = options.error;
-      options.success = function(ids) {
-        var i, _i, _ref;
-        if (_.isArray(model)) {
-          for (i = _i = 0, _ref = model.length; 0 <= _ref ? _i < _ref : _i > _ref; i = 0 <= _ref ? ++_i : --_i) {
-            model[i].set(_this.localID, ids[i]);
-          }
-        } else {
-          model.set(_this.localID, ids[0]);
-        }
-        return _this._writeAll(_this._buildAddEntitiesQueries(_this._arrayCheck(model)), {
-          success: success,
-          error: error
+      models = this._arrayCheck(model);
+      queries = this._buildNoteQueries(model, options, $.proxy(this._buildAddNoteQuery, this), 'create');
+      steps = queries.map(function(q) {
+        return {
+          write: q.query,
+          args: q.args,
+          compress: q.compress
+        };
+      });
+      _ref = this._buildAddEntitiesQueries(models, models.map(function(note, i) {
+        return {
+          step: i
+        };
+      }));
+      for (_i = 0, _len = _ref.length; _i < _len; _i++) {
+        steps.push({
+          write: _ref[_i].query,
+          rows: _ref[_i].rows
         });
-      };
-      return this._makeAndCallQuery(model, options, $.proxy(this._buildAddNoteQuery, this), 'create');
+      }
+      return forge.internal.call('database.pipeline', {
+        steps: steps,
+        transaction: true,
+        durability: options.durability
+      }, function(results) {
+        var i, _j, _ref1;
+        for (i = _j = 0, _ref1 = models.length; _j < _ref1; i = ++_j) {
+          models[i].set(_this.localID, results[i]);
+        }
+        if (success) return success();
+      }, function(e) {
+        if (error) return error(e);
+      });
     },
     update: function(model, options) {
       var error, success,
@@ -256,6 +351,22 @@ Database = (function() {
       };
       return this._makeAndCallQuery(model, options, $.proxy(this._buildUpdateNoteQuery, this), 'update');
     },
+    edit: function(model, options) {
+      var error, success;
+      options || (options = {});
+      success = options.success, error = options.error;
+      model.set(this.status, 'update');
+      return forge.internal.call('database.editNote', {
+        localID: model.get(this.localID),
+        text: model.get(this.text),
+        timestamp: model.get(this.timestamp),
+        status: model.get(this.status)
+      }, function() {
+        if (success) return success();
+      }, function(e) {
+        if (error) return error(e);
+      });
+    },
     'delete': function(model, options) {
       var dirty, error, success,
         _this = this;
@@ -294,25 +405,30 @@ Database = (function() {
       success = options.success, error = options.error;
       return forge.internal.call('database.multiQuery', {
         queries: models.map($.proxy(this._buildSelectNoteQuery, this))
-      }, function(results) {
-        var i, result;
-        return forge.internal.call('database.writeAll', {
-          queries: (function() {
-            var _i, _len, _results;
-            _results = [];
-            for (i = _i = 0, _len = results.length; _i < _len; i = ++_i) {
-              result = results[i];
-              _results.push(this._buildCUDMethod(models[i], result));
+      }, function(spilled) {
+        return Database.prototype._unspillAll(spilled, function(results) {
+          var i, result;
+          return forge.internal.call('database.writeAll', {
+            durability: 'relaxed',
+            queries: (function() {
+              var _i, _len, _results;
+              _results = [];
+              for (i = _i = 0, _len = results.length; _i < _len; i = ++_i) {
+                result = results[i];
+                _results.push(this._buildCUDMethod(models[i], result));
+              }
+              return _results;
+            }).call(_this)
+          }, function(ids) {
+            var i, model, _i, _len;
+            for (i = _i = 0, _len = models.length; _i < _len; i = ++_i) {
+              model = models[i];
+              if (!results[i].length) model.set('id', ids[i]);
             }
-            return _results;
-          }).call(_this)
-        }, function(ids) {
-          var i, model, _i, _len;
-          for (i = _i = 0, _len = models.length; _i < _len; i = ++_i) {
-            model = models[i];
-            if (!results[i].length) model.set('id', ids[i]);
-          }
-          if (success) return success();
+            if (success) return success();
+          }, function(e) {
+            if (error) return error(e);
+          });
         }, function(e) {
           if (error) return error(e);
         });
@@ -322,20 +438,55 @@ Database = (function() {
     },
     get: function(args) {
       args || (args = {});
-      args.query = this._buildFetchQuery(args);
       args.type = "notes";
-      return Database.prototype._getStuff(args);
+      if (args.preview) {
+        args.query = this._buildFetchQuery(args);
+        return Database.prototype._getStuff(args);
+      }
+      args.query = this._buildFetchBaseQuery(args);
+      return forge.internal.call('database.queryPage', {
+        query: args.query,
+        skip: args.skip,
+        limit: args.limit
+      }, function(dbData) {
+        return args.success(dbData, args);
+      }, args.error);
+    },
+    summaries: function(args) {
+      var search, where;
+      args || (args = {});
+      args.hashtags || (args.hashtags = []);
+      args.attags || (args.attags = []);
+      args.dirty || (args.dirty = false);
+      search = args.search;
+      where = this._whereClause(_.extend({}, args, {
+        search: null
+      }));
+      if (search) {
+        where += (where ? " and " : "where ") + (this.localID + " in (select " + this.localID + " from Notes where " + this.text + " like '%" + search + "%' collate nocase)");
+      }
+      return forge.internal.call('database.summaries', {
+        where: where,
+        skip: args.skip || 0,
+        limit: args.limit || 25
+      }, function(rows) {
+        return args.success(rows, args);
+      }, args.error);
     },
     _makeAndCallQuery: function(model, options, queryFunction, ifDirty) {
-      var addQuery, cleaning, dirty, note, queries, _i, _len;
+      return this._writeAll(this._buildNoteQueries(model, options, queryFunction, ifDirty), options);
+    },
+    _buildNoteQueries: function(model, options, queryFunction, ifDirty) {
+      var addQuery, cleaning, compress, dirty, note, queries, _i, _len;
       options || (options = {});
-      cleaning = options.cleaning, dirty = options.dirty;
+      cleaning = options.cleaning, dirty = options.dirty, compress = options.compress;
       queries = [];
       addQuery = function(note) {
         note.set(this.status, dirty ? ifDirty : 'synced');
         return queries.push({
           query: queryFunction(note, cleaning),
-          args: !dirty && ifDirty === 'delete' ? [] : [note.get('text')]
+          args: !dirty && ifDirty === 'delete' ? [] : [note.get('text')],
+          compress: Boolean(compress)
         });
       };
       if (_.isArray(model)) {
@@ -347,12 +498,13 @@ Database = (function() {
       } else {
         addQuery(model);
       }
-      return this._writeAll(queries, options);
+      options.durability || (options.durability = dirty ? 'strict' : 'relaxed');
+      return queries;
     },
     _writeAll: function(queries, options) {
-      var error, q, success, _i, _len;
+      var durability, error, q, success, _i, _len;
       options || (options = {});
-      success = options.success, error = options.error;
+      success = options.success, error = options.error, durability = options.durability;
       if (false) {
         console.log('##############################################\nwoot we debuggin\'');
         console.log(queries);
@@ -365,7 +517,8 @@ Database = (function() {
         console.log('#################################################################333\n\n\n');
       }
       return forge.internal.call('database.writeAll', {
-        queries: queries
+        queries: queries,
+        durability: durability || 'normal'
       }, function(ids) {
         if (success) return success(ids);
       }, function(err) {
@@ -379,30 +532,40 @@ Database = (function() {
         return [model];
       }
     },
-    _buildAddEntitiesQueries: function(models) {
-      var note;
-      return _.flatten((function() {
-        var _i, _len, _results;
-        _results = [];
-        for (_i = 0, _len = models.length; _i < _len; _i++) {
-          note = models[_i];
-          _results.push(this._buildNoteEntityQueries(Fetch.findEntities(note.get(this.text)), note.get(this.localID)));
+    _buildAddEntitiesQueries: function(models, ids) {
+      var batches, entry, note, results, _i, _j, _len, _len1, _ref;
+      batches = {};
+      results = [];
+      for (_i = 0, _len = models.length; _i < _len; _i++) {
+        note = models[_i];
+        _ref = this._buildNoteEntityQueries(Fetch.findEntities(note.get(this.text)), ids ? ids[_i] : note.get(this.localID));
+        for (_j = 0, _len1 = _ref.length; _j < _len1; _j++) {
+          entry = _ref[_j];
+          if (batches[entry.query]) {
+            batches[entry.query].rows = batches[entry.query].rows.concat(entry.rows);
+          } else {
+            results.push(batches[entry.query] = entry);
+          }
         }
-        return _results;
-      }).call(this));
+      }
+      return results;
     },
     _buildNoteEntityQueries: function(entities, id) {
-      var entName, entity, results, _i, _j, _len, _len1, _ref, _ref1;
+      var entName, entity, results, rows, _i, _j, _len, _len1, _ref, _ref1;
       results = [];
       _ref = Object.keys(entities);
       for (_i = 0, _len = _ref.length; _i < _len; _i++) {
         entName = _ref[_i];
         _ref1 = entities[entName];
+        rows = [];
         for (_j = 0, _len1 = _ref1.length; _j < _len1; _j++) {
           entity = _ref1[_j];
+          rows.push([id, entity.toLowerCase()]);
+        }
+        if (rows.length) {
           results.push({
-            query: ("insert into " + this.TABLE_NAMES[entName] + " ") + ("(" + this.localID + " , " + entName + ") values (" + id + ",\"" + (entity.toLowerCase()) + "\")"),
-            args: []
+            query: ("insert into " + this.TABLE_NAMES[entName] + " ") + ("(" + this.localID + " , " + entName + ") values (?,?)"),
+            rows: rows
           });
         }
       }
@@ -476,15 +639,19 @@ Database = (function() {
     _buildDeleteNoteQuery: function(model) {
       return "delete from Notes where " + this._checkNewness(model);
     },
-    _buildFetchQuery: function(args) {
-      var limit, skip;
+    _buildFetchBaseQuery: function(args) {
       args.hashtags || (args.hashtags = []);
       args.attags || (args.attags = []);
       args.skip || (args.skip = 0);
       args.limit || (args.limit = 25);
       args.dirty || (args.dirty = false);
+      return "select * from Notes " + this._whereClause(args) + (" order by " + this.timestamp + " desc ");
+    },
+    _buildFetchQuery: function(args) {
+      var base, limit, skip;
+      base = this._buildFetchBaseQuery(args);
       skip = args.skip, limit = args.limit;
-      return "select * from Notes " + this._whereClause(args) + (" order by " + this.timestamp + " desc ") + (" limit " + skip + "," + (skip + limit) + ";");
+      return base + (" limit " + skip + "," + limit + ";");
     }
   };
 
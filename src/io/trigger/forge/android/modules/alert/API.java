@@ -15,46 +15,32 @@ Copyright 2012 Fetchnotes,Inc.
    limitations under the License.
   */
 
-import io.trigger.forge.android.core.ForgeActivity;
 import io.trigger.forge.android.core.ForgeApp;
 import io.trigger.forge.android.core.ForgeParam;
 import io.trigger.forge.android.core.ForgeTask;
+import io.trigger.forge.android.modules.keyboard.KeyboardManager;
+import io.trigger.forge.android.modules.recorder.Tracer;
 
-import android.content.Context;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
-import android.view.MotionEvent;
-import android.view.View;
-import android.view.View.OnTouchListener;
-import android.view.WindowManager;
-import android.view.inputmethod.InputMethodManager;
 import android.webkit.WebView;
 
 public class API {
 	public static KeyCharacterMap map = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
-	private static class StickyListener implements OnTouchListener{
-		private ForgeTask task;
-		public StickyListener setTask(ForgeTask task){
-			this.task = task;
-			return this;
-		}
-		@Override
-		public boolean onTouch(View v, MotionEvent event) {
-			show(task);
-			return false;
-		}
-	}
-	
-	private final static StickyListener KEYBOARD_LISTENER = new StickyListener();
-	
+	//shows the keyboard on touch, if it isn't already up. Shared with keyboard, see KeyboardManager
 	public static void stick(final ForgeTask task){
-		try{
-			ForgeApp.getActivity().webView.setOnTouchListener(KEYBOARD_LISTENER.setTask(task));
-			task.success();
-		}catch(Exception e){
-			e.printStackTrace();
-			task.error(e);
-		}
+		task.performUI(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					ForgeApp.getActivity().webView.setOnTouchListener(KeyboardManager.get().stickyListener);
+					task.success();
+				}catch(Exception e){
+					e.printStackTrace();
+					task.error(e);
+				}
+			}
+		}));
 	}
 	
 	public static void unstick(final ForgeTask task){
@@ -77,19 +63,20 @@ public class API {
 	}
 	
 	public static void show(){
-			InputMethodManager mgr = getKeyboard();
-	        mgr.toggleSoftInput(InputMethodManager.SHOW_FORCED,InputMethodManager.HIDE_IMPLICIT_ONLY);
+		ForgeApp.getActivity().runOnUiThread(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				KeyboardManager.get().requestShow();
+			}
+		}));
 	}
 	
 	public static void hide(){
-		InputMethodManager mgr = getKeyboard();
-	    mgr.toggleSoftInput(InputMethodManager.HIDE_IMPLICIT_ONLY, 0);
-		//ForgeApp.getActivity().getWindow().setSoftInputMode(
-		//	      WindowManager.LayoutParams.SOFT_INPUT_STATE_ALWAYS_HIDDEN);
-	}
-		
-	private static InputMethodManager getKeyboard(){
-		ForgeActivity activity = ForgeApp.getActivity();
-		return (InputMethodManager) activity.getSystemService(Context.INPUT_METHOD_SERVICE);
+		ForgeApp.getActivity().runOnUiThread(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				KeyboardManager.get().requestHide();
+			}
+		}));
 	}
 }
\ No newline at end of file
@@ -15,6 +15,8 @@ Copyright 2012 Fetchnotes,Inc.
    limitations under the License.
   */
 
+import java.util.ArrayList;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -22,7 +24,10 @@ import org.json.JSONObject;
 import io.trigger.forge.android.core.ForgeApp;
 import io.trigger.forge.android.core.ForgeParam;
 import io.trigger.forge.android.core.ForgeTask;
+import io.trigger.forge.android.modules.recorder.Tracer;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -32,47 +37,246 @@ public class API {
 	
 	final static ContentResolver resolver = ForgeApp.getActivity().getContentResolver();
 	final static Uri URI = MyContentDescriptor.Categories.CONTENT_URI;
+	final static ChangeFeed feed = ChangeFeed.register(resolver, URI);
+	//The provider runs on whatever thread calls the resolver, so everything that touches it
+	//goes through performAsync, never the bridge thread. See recorder.DiskGuard
 
 	public static void stickEmployeeInThere(final ForgeTask task,@ForgeParam("name") final String name,
 			@ForgeParam("status") final String status){
-		try{
-			ContentValues cv = new ContentValues();
-			cv.put(MyContentDescriptor.Categories.Cols.key_2_catname, name);
-			cv.put(MyContentDescriptor.Categories.Cols.key_3_catstatus, status);
+		task.performAsync(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					ContentValues cv = new ContentValues();
+					cv.put(MyContentDescriptor.Categories.Cols.key_2_catname, name);
+					cv.put(MyContentDescriptor.Categories.Cols.key_3_catstatus, status);
 			
-			resolver.insert(URI, cv);
-			task.success();
-		}catch(Exception e){
-			task.error(e);
-		}
+					resolver.insert(URI, cv);
+					task.success();
+				}catch(Exception e){
+					task.error(e);
+				}
+			}
+		}));
+	}
+	
+	//[{name, status}, ...] in one transaction, see MyContentProvider.bulkInsert
+	public static void stickEmployeesInThere(final ForgeTask task,@ForgeParam("employees") final JSONArray employees){
+		task.performAsync(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					ContentValues[] values = new ContentValues[employees.length()];
+					for(int i = 0; i < values.length; i++)
+						values[i] = toValues(employees.getJSONObject(i));
+					task.success(resolver.bulkInsert(URI, values));
+				}catch(Exception e){
+					task.error(e);
+				}
+			}
+		}));
+	}
+	
+	//[{op: "insert"|"update"|"delete", id, name, status}, ...], applied as one batch.
+	//Comes back with the new row's uri for inserts and the rows changed otherwise
+	public static void changeEmployees(final ForgeTask task,@ForgeParam("operations") final JSONArray operations){
+		task.performAsync(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>(operations.length());
+					for(int i = 0; i < operations.length(); i++)
+						batch.add(toOperation(operations.getJSONObject(i)));
+					ContentProviderResult[] results = resolver.applyBatch(MyContentDescriptor.AUTHORITY, batch);
+					JSONArray toRet = new JSONArray();
+					for(ContentProviderResult result : results)
+						toRet.put(result.uri != null ? result.uri.toString() : result.count);
+					task.success(toRet);
+				}catch(Exception e){
+					task.error(e);
+				}
+			}
+		}));
 	}
 	
+	private static ContentValues toValues(JSONObject employee) throws JSONException{
+		ContentValues cv = new ContentValues();//only what's given, so updates can be partial
+		if(employee.has("name"))
+			cv.put(MyContentDescriptor.Categories.Cols.key_2_catname, employee.getString("name"));
+		if(employee.has("status"))
+			cv.put(MyContentDescriptor.Categories.Cols.key_3_catstatus, employee.getString("status"));
+		return cv;
+	}
+	
+	private static ContentProviderOperation toOperation(JSONObject operation) throws JSONException{
+		String op = operation.getString("op");
+		String[] byId = new String[]{operation.optString("id")};
+		String where = MyContentDescriptor.Categories.Cols.cat_id + "=?";
+		if(op.equals("insert"))
+			return ContentProviderOperation.newInsert(URI).withValues(toValues(operation)).build();
+		else if(op.equals("update"))
+			return ContentProviderOperation.newUpdate(URI).withValues(toValues(operation)).withSelection(where, byId).build();
+		else if(op.equals("delete"))
+			return ContentProviderOperation.newDelete(URI).withSelection(where, byId).build();
+		throw new JSONException("unknown op: " + op);
+	}
+	
+	//Everything's optional (read straight off task.params):
+	//  projection: ["name", ...], selection: "status = ?", selectionArgs: [...], sortOrder: "name"
+	//  limit: n, after: _id of the last row of the previous page (keyset paging, sorts by _id,
+	//  so it can't be combined with sortOrder)
 	public static void getSome(final ForgeTask task){
+		task.performAsync(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					Query query = new Query(task.params, null);
+					task.success(extractNotesFromCursor(query.run(query.params.optLong("after", Long.MIN_VALUE))));
+				}catch(Exception e){
+					task.error(e);
+				}
+			}
+		}));
+	}
+	
+	//Same params as getSome, but the rows come in pages of `limit` (default 500) as
+	//contprov.page events {stream, rows}, so nothing ever holds the whole table. It's always
+	//paging, so it's always in _id order and sortOrder isn't allowed.
+	//stream is this call's id; succeeds with the number of rows once they've all been sent
+	public static void streamSome(final ForgeTask task){
+		task.performAsync(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					Query query = new Query(task.params, "500");
+					long after = query.params.optLong("after", Long.MIN_VALUE);
+					int total = 0;
+					while(true){
+						JSONArray rows = extractNotesFromCursor(query.run(after));
+						if(rows.length() == 0) break;
+						JSONObject page = new JSONObject();
+						page.put("stream", task.callid);
+						page.put("rows", rows);
+						ForgeApp.event("contprov.page", page);
+						total += rows.length();
+						if(rows.length() < Integer.parseInt(query.limit)) break;
+						after = rows.getJSONObject(rows.length() - 1).getLong(MyContentDescriptor.Categories.Cols.cat_id);
+					}
+					task.success(total);
+				}catch(Exception e){
+					task.error(e);
+				}
+			}
+		}));
+	}
+	
+	//{version, rows, deleted} of everything that changed after `version`, or {version, reset: true}
+	//if that's too far back and getSome has to be called again. Start with version 0,
+	//contprov.changed events say when there's something new
+	public static void changesSince(final ForgeTask task, @ForgeParam("version") final long version){
+		task.performAsync(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					task.success(feed.changesSince(version));
+				}catch(Exception e){
+					task.error(e);
+				}
+			}
+		}));
+	}
+	
+	//hits/misses of the provider's by-id row cache
+	public static void cacheStats(final ForgeTask task){
 		try{
-			task.success(extractNotesFromCursor(resolver.query(URI, null, null,null,null)));
+			task.success(MyContentProvider.ROWS.stats());
 		}catch(Exception e){
 			task.error(e);
 		}
 	}
 	
-	private static JSONArray extractNotesFromCursor(Cursor c) throws JSONException{
-		JSONArray toRet = new JSONArray();
-		
-
-		int[] cIndices = new int[]{
-				c.getColumnIndex(MyContentDescriptor.Categories.Cols.key_2_catname),
-				c.getColumnIndex(MyContentDescriptor.Categories.Cols.key_3_catstatus)
-		};
+	private static class Query {
+		final JSONObject params;
+		String[] projection;
+		final String selection, sortOrder, limit;
+		String[] selectionArgs;
 		
+		//defaultLimit: when params don't have one, null for no limit
+		Query(JSONObject params, String defaultLimit) throws JSONException{
+			this.params = params;
+			projection = toStrings(params.optJSONArray("projection"));
+			selection = params.has("selection") ? params.getString("selection") : null;
+			selectionArgs = toStrings(params.optJSONArray("selectionArgs"));
+			sortOrder = params.has("sortOrder") ? params.getString("sortOrder") : null;
+			limit = params.has("limit") ? String.valueOf(params.getInt("limit")) : defaultLimit;
+			boolean paging = params.has("after") || limit != null;
+			if(paging && projection != null && !contains(projection, MyContentDescriptor.Categories.Cols.cat_id)){
+				String[] withId = new String[projection.length + 1];
+				System.arraycopy(projection, 0, withId, 0, projection.length);
+				withId[projection.length] = MyContentDescriptor.Categories.Cols.cat_id;
+				projection = withId;//the caller needs it for the next page
+			}
+		}
 		
-		for(c.moveToFirst();!c.isAfterLast();c.moveToNext()){//Extract note from cursor 
-			JSONObject o = new JSONObject();
-			o.put("name", c.getString(cIndices[0]));
-			o.put("status", c.getString(cIndices[1]));
-					//c.getString(cIndices[SERVER_ID]),
-			toRet.put(o);
+		//after = Long.MIN_VALUE for the first page. Every page is in _id order, the keyset
+		//only picks up where the last one left off if the first one was too
+		Cursor run(long after){
+			String where = selection;
+			String[] args = selectionArgs;
+			String order = sortOrder;
+			boolean paging = after != Long.MIN_VALUE || limit != null;
+			if(paging && sortOrder != null)
+				throw new IllegalArgumentException("sortOrder can't be used with limit or after, pages are in _id order");
+			if(after != Long.MIN_VALUE){
+				String keyset = MyContentDescriptor.Categories.Cols.cat_id + " > ?";
+				where = where == null ? keyset : "(" + where + ") AND " + keyset;
+				args = append(args, String.valueOf(after));
+			}
+			if(paging)
+				order = MyContentDescriptor.Categories.Cols.cat_id;
+			Uri uri = limit == null ? URI : URI.buildUpon().appendQueryParameter("limit", limit).build();
+			return resolver.query(uri, projection, where, args, order);
 		}
+	}
+	
+	private static String[] toStrings(JSONArray array) throws JSONException{
+		if(array == null) return null;
+		String[] toRet = new String[array.length()];
+		for(int i = 0; i < toRet.length; i++)
+			toRet[i] = array.getString(i);
+		return toRet;
+	}
+	
+	private static String[] append(String[] array, String value){
+		String[] toRet = new String[array == null ? 1 : array.length + 1];
+		if(array != null) System.arraycopy(array, 0, toRet, 0, array.length);
+		toRet[toRet.length - 1] = value;
+		return toRet;
+	}
+	
+	private static boolean contains(String[] array, String value){
+		for(String s : array) if(s.equals(value)) return true;
+		return false;
+	}
+	
+	static JSONArray extractNotesFromCursor(Cursor c) throws JSONException{
+		JSONArray toRet = new JSONArray();
+		String[] columns = c.getColumnNames();
 		
+		try{
+			for(c.moveToFirst();!c.isAfterLast();c.moveToNext()){//Extract note from cursor 
+				JSONObject o = new JSONObject();
+				for(int i = 0; i < columns.length; i++){
+					if(columns[i].equals(MyContentDescriptor.Categories.Cols.cat_id))
+						o.put(columns[i], c.getLong(i));
+					else
+						o.put(columns[i], c.isNull(i) ? JSONObject.NULL : c.getString(i));
+				}
+				toRet.put(o);
+			}
+		}finally{
+			c.close();
+		}
 		
 		return toRet;
 	}
@@ -0,0 +1,142 @@
+package io.trigger.forge.android.modules.contprov;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import io.trigger.forge.android.core.ForgeApp;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+// Watches the categories uri and keeps a log of which rows changed at which version,
+// so JS can ask for just what changed since the last version it saw instead of
+// re-reading the whole table. Every change also fires a contprov.changed event.
+public class ChangeFeed extends ContentObserver {
+
+    // also keeps the IN (...) below under sqlite's 999 bound args
+    private static final int MAX_LOG = 500;
+
+    private final ContentResolver resolver;
+    private final Uri collection;
+
+    private long version = 0;
+    // anything asking for changes older than this has to start over from getSome,
+    // the log either dropped them or they came in without row ids
+    private long floor = 0;
+    // row id -> version it last changed at, oldest first
+    private final LinkedHashMap<Long, Long> changedAt = new LinkedHashMap<Long, Long>();
+
+    private ChangeFeed(ContentResolver resolver, Uri collection) {
+        super(null);
+        this.resolver = resolver;
+        this.collection = collection;
+    }
+
+    public static ChangeFeed register(ContentResolver resolver, Uri collection) {
+        ChangeFeed feed = new ChangeFeed(resolver, collection);
+        resolver.registerContentObserver(collection, true, feed);
+        return feed;
+    }
+
+    // pre-jelly bean, we don't get told which row it was
+    @Override
+    public void onChange(boolean selfChange) {
+        onChange(selfChange, null);
+    }
+
+    // jelly bean and up
+    public void onChange(boolean selfChange, Uri uri) {
+        long current;
+        synchronized (this) {
+            current = ++version;
+            Long id = rowId(uri);
+            if (id == null) {
+                floor = current;
+                changedAt.clear();
+            } else {
+                changedAt.remove(id);// so it moves to the end
+                changedAt.put(id, current);
+                if (changedAt.size() > MAX_LOG) {
+                    Iterator<Map.Entry<Long, Long>> eldest = changedAt.entrySet().iterator();
+                    floor = eldest.next().getValue();
+                    eldest.remove();
+                }
+            }
+        }
+        try {
+            JSONObject event = new JSONObject();
+            event.put("version", current);
+            ForgeApp.event("contprov.changed", event);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Long rowId(Uri uri) {
+        if (uri == null || MyContentDescriptor.URI_MATCHER.match(uri)
+                != MyContentDescriptor.Categories.CAT_PATH_FOR_ID_TOKEN)
+            return null;
+        try {
+            return Long.valueOf(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // {version, rows: [current state of changed rows], deleted: [ids]},
+    // or {version, reset: true} if the log doesn't go back that far
+    public JSONObject changesSince(long since) throws JSONException {
+        long current;
+        List<Long> ids = new ArrayList<Long>();
+        boolean reset;
+        synchronized (this) {
+            current = version;
+            reset = since < floor;
+            if (!reset)
+                for (Map.Entry<Long, Long> entry : changedAt.entrySet())
+                    if (entry.getValue() > since)
+                        ids.add(entry.getKey());
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("version", current);
+        if (reset) {
+            result.put("reset", true);
+            return result;
+        }
+
+        JSONArray rows = new JSONArray();
+        JSONArray deleted = new JSONArray();
+        if (!ids.isEmpty()) {
+            StringBuilder in = new StringBuilder();
+            String[] args = new String[ids.size()];
+            for (int i = 0; i < args.length; i++) {
+                in.append(i == 0 ? "?" : ",?");
+                args[i] = String.valueOf(ids.get(i));
+            }
+            Cursor c = resolver.query(collection, null,
+                    MyContentDescriptor.Categories.Cols.cat_id + " IN (" + in + ")", args, null);
+            rows = API.extractNotesFromCursor(c);// closes c
+            Set<Long> found = new HashSet<Long>();
+            for (int i = 0; i < rows.length(); i++)
+                found.add(rows.getJSONObject(i).getLong(MyContentDescriptor.Categories.Cols.cat_id));
+            for (Long id : ids)
+                if (!found.contains(id))
+                    deleted.put(id.longValue());
+        }
+        result.put("rows", rows);
+        result.put("deleted", deleted);
+        return result;
+    }
+}
@@ -0,0 +1,77 @@
+package io.trigger.forge.android.modules.contprov;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+// Collects the rows the provider changed and tells observers about them once per
+// DEBOUNCE_MS, one uri per row when there are only a few, the whole collection otherwise.
+public class ChangeNotifier {
+
+    public static final long DEBOUNCE_MS = 100;
+    public static final int MAX_ROW_URIS = 20;
+
+    private final ContentResolver resolver;
+    private final Uri collection;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Set<Uri> pending = new LinkedHashSet<Uri>();
+    private boolean wholeCollection = false;
+    private boolean scheduled = false;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public ChangeNotifier(ContentResolver resolver, Uri collection) {
+        this.resolver = resolver;
+        this.collection = collection;
+    }
+
+    public synchronized void rowChanged(long id) {
+        if (!wholeCollection) {
+            pending.add(collection.buildUpon().appendPath(String.valueOf(id)).build());
+            if (pending.size() > MAX_ROW_URIS)
+                collectionChanged();
+        }
+        schedule();
+    }
+
+    // when we can't tell which rows it was
+    public synchronized void collectionChanged() {
+        wholeCollection = true;
+        pending.clear();
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(flush, DEBOUNCE_MS);
+        }
+    }
+
+    private void flush() {
+        List<Uri> toNotify = new ArrayList<Uri>();
+        synchronized (this) {
+            if (wholeCollection)
+                toNotify.add(collection);
+            else
+                toNotify.addAll(pending);
+            pending.clear();
+            wholeCollection = false;
+            scheduled = false;
+        }
+        for (Uri uri : toNotify)
+            resolver.notifyChange(uri, null);
+    }
+}
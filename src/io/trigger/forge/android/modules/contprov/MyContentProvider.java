@@ -2,8 +2,16 @@ package io.trigger.forge.android.modules.contprov;
 
 
 import io.trigger.forge.android.core.ForgeContentProvider;
+import io.trigger.forge.android.modules.recorder.DiskGuard;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -13,28 +21,57 @@ import android.util.Log;
 
 public class MyContentProvider extends ForgeContentProvider {
 	 
+    private static final boolean DEBUG = false;
+    // let other writers in every this many rows of a batch
+    private static final int YIELD_EVERY = 100;
+
+    // by-id lookups, see query
+    static final RowCache ROWS = new RowCache();
+
     private MyDatabase mydb;
+    private ChangeNotifier notifier;
+    // rows changed by the running batch, only handed to the notifier once it commits.
+    // null outside a batch, COLLECTION in it means we couldn't tell which rows
+    private final ThreadLocal<List<Long>> batchChanges = new ThreadLocal<List<Long>>();
+    private static final Long COLLECTION = Long.valueOf(-1);
+
     @Override
     public boolean onCreate() {
         // TODO Auto-generated method stub
         Context ctx = getContext();
         mydb = new MyDatabase(ctx);
+        notifier = new ChangeNotifier(ctx.getContentResolver(),
+                MyContentDescriptor.Categories.CONTENT_URI);
         return (mydb == null) ? false : true;
     }
  
+    // every entry point below is timed by DiskGuard.enter/exit, the
+    // resolver shouldn't be called from the UI or bridge thread
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long began = DiskGuard.enter();
+        try {
+            return doDelete(uri, selection, selectionArgs);
+        } finally {
+            DiskGuard.exit("contprov.delete", began);
+        }
+    }
+
+    private int doDelete(Uri uri, String selection, String[] selectionArgs) {
         // TODO Auto-generated method stub
          SQLiteDatabase db = mydb.getWritableDatabase();
          int token = MyContentDescriptor.URI_MATCHER.match(uri);
          int count=0;
+         List<Long> ids = null;
          
          switch(token){
          case MyContentDescriptor.Categories.CAT_PATH_TOKEN:
+            ids = matchingIds(db, selection, selectionArgs);
             count= db.delete(MyContentDescriptor.Categories.TABLE_NAME, selection, selectionArgs);
              break;
          }
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0)
+            changed(ids);
         return count;
    
     }
@@ -48,20 +85,30 @@ public class MyContentProvider extends ForgeContentProvider {
  
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long began = DiskGuard.enter();
+        try {
+            return doInsert(uri, values);
+        } finally {
+            DiskGuard.exit("contprov.insert", began);
+        }
+    }
+
+    private Uri doInsert(Uri uri, ContentValues values) {
         // TODO Auto-generated method stub
  
-        Log.d("sohail", "inside insert");
+        if (DEBUG) Log.d("sohail", "inside insert");
         SQLiteDatabase db = mydb.getWritableDatabase();
  
         int token = MyContentDescriptor.URI_MATCHER.match(uri);
         switch (token) {
         case MyContentDescriptor.Categories.CAT_PATH_TOKEN: // uri is of
                                                             // categories table
-            Log.d("sohail", "matched uri is CAT_PATH_TOKEN:" + uri.toString());
+            if (DEBUG) Log.d("sohail", "matched uri is CAT_PATH_TOKEN:" + uri.toString());
             long id = db.insert(MyContentDescriptor.Categories.TABLE_NAME,
                     null, values);
             // notifying change to content observers
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (id != -1)
+                changed(Collections.singletonList(id));
             return MyContentDescriptor.Categories.CONTENT_URI.buildUpon()
                     .appendPath(String.valueOf(id)).build();
  
@@ -74,24 +121,49 @@ public class MyContentProvider extends ForgeContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
+        long began = DiskGuard.enter();
+        try {
+            Cursor c = doQuery(uri, projection, selection, selectionArgs, sortOrder);
+            // a cursor only runs its query when it's first touched, so count it
+            // here or the time goes to whoever reads it
+            if (c != null)
+                c.getCount();
+            return c;
+        } finally {
+            DiskGuard.exit("contprov.query", began);
+        }
+    }
+
+    private Cursor doQuery(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
         // TODO Auto-generated method stub
-        Log.d("sohail", "query called");
+        if (DEBUG) Log.d("sohail", "query called");
         SQLiteDatabase db = mydb.getReadableDatabase();
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         Cursor c;
         int token = MyContentDescriptor.URI_MATCHER.match(uri);
  
+        // ?limit=n, so callers can page
+        String limit = uri.getQueryParameter("limit");
         switch (token) {
  
         case MyContentDescriptor.Categories.CAT_PATH_TOKEN:
-            Log.d("sohail", "matched uri is CAT_PATH_TOKEN:" + uri.toString());
+            if (DEBUG) Log.d("sohail", "matched uri is CAT_PATH_TOKEN:" + uri.toString());
             queryBuilder.setTables(MyContentDescriptor.Categories.TABLE_NAME);
             c = queryBuilder.query(db, projection, selection, selectionArgs,
-                    null, null, sortOrder);
+                    null, null, sortOrder, limit);
             return c;
  
         case MyContentDescriptor.Categories.CAT_PATH_FOR_ID_TOKEN:
-            Log.d("sohail", "matched uri is CAT_PATH_TOKEN:" + uri.toString());
+            if (DEBUG) Log.d("sohail", "matched uri is CAT_PATH_TOKEN:" + uri.toString());
+            Long id = parseId(uri);
+            if (id != null && selection == null) {
+                c = ROWS.get(id, projection);
+                if (c == null)
+                    c = queryAndCache(db, id, projection);
+                if (c != null)
+                    return c;
+            }
             queryBuilder.setTables(MyContentDescriptor.Categories.TABLE_NAME);
             queryBuilder.appendWhere(MyContentDescriptor.Categories.Cols.cat_id
                     + "=" + uri.getLastPathSegment());
@@ -100,7 +172,7 @@ public class MyContentProvider extends ForgeContentProvider {
             return c;
  
        default:
-            Log.d("sohail", "no URI MATCHED");
+            if (DEBUG) Log.d("sohail", "no URI MATCHED");
             return null;
         }
  
@@ -109,20 +181,196 @@ public class MyContentProvider extends ForgeContentProvider {
     @Override
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
+        long began = DiskGuard.enter();
+        try {
+            return doUpdate(uri, values, selection, selectionArgs);
+        } finally {
+            DiskGuard.exit("contprov.update", began);
+        }
+    }
+
+    private int doUpdate(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
         // TODO Auto-generated method stub
          SQLiteDatabase db = mydb.getWritableDatabase();
          int token = MyContentDescriptor.URI_MATCHER.match(uri);
          int count=0;
+         List<Long> ids = null;
          
          switch(token){
          case MyContentDescriptor.Categories.CAT_PATH_TOKEN:
+            ids = matchingIds(db, selection, selectionArgs);
             count= db.update(MyContentDescriptor.Categories.TABLE_NAME,values, selection, selectionArgs);
              break;
             }
          
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0)
+            changed(ids);
         return count;
          
     }
+
+    // whole batch in one transaction, notifications once it's committed
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long began = DiskGuard.enter();
+        try {
+            return doBulkInsert(uri, values);
+        } finally {
+            DiskGuard.exit("contprov.bulkInsert", began);
+        }
+    }
+
+    private int doBulkInsert(Uri uri, ContentValues[] values) {
+        int token = MyContentDescriptor.URI_MATCHER.match(uri);
+        if (token != MyContentDescriptor.Categories.CAT_PATH_TOKEN)
+            throw new UnsupportedOperationException("URI: " + uri
+                    + " not supported.");
+
+        SQLiteDatabase db = mydb.getWritableDatabase();
+        List<Long> ids = new ArrayList<Long>();
+        int committed = 0;
+        boolean ok = false;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                long id = db.insert(MyContentDescriptor.Categories.TABLE_NAME, null, values[i]);
+                if (id != -1)
+                    ids.add(id);
+                if ((i + 1) % YIELD_EVERY == 0 && db.yieldIfContendedSafely())
+                    committed = ids.size();
+            }
+            db.setTransactionSuccessful();
+            ok = true;
+        } finally {
+            db.endTransaction();
+            if (!ok && committed > 0)
+                changed(new ArrayList<Long>(ids.subList(0, committed)));
+        }
+        if (!ids.isEmpty())
+            changed(ids);
+        return ids.size();
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long began = DiskGuard.enter();
+        try {
+            return doApplyBatch(operations);
+        } finally {
+            DiskGuard.exit("contprov.applyBatch", began);
+        }
+    }
+
+    private ContentProviderResult[] doApplyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mydb.getWritableDatabase();
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        List<Long> changes = new ArrayList<Long>();
+        int committed = 0;
+        boolean ok = false;
+        batchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < results.length; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                results[i] = operation.apply(this, results, i);
+                // yielding commits what's been done so far, so a failure after
+                // this point only rolls back to here
+                if ((operation.isYieldAllowed() || (i + 1) % YIELD_EVERY == 0)
+                        && db.yieldIfContendedSafely())
+                    committed = changes.size();
+            }
+            db.setTransactionSuccessful();
+            ok = true;
+        } finally {
+            db.endTransaction();
+            batchChanges.remove();
+            // what was committed before the failure is on disk, observers need to hear about it
+            if (!ok && committed > 0)
+                changed(new ArrayList<Long>(changes.subList(0, committed)));
+        }
+        changed(changes);
+        return results;
+    }
+
+    private static Long parseId(Uri uri) {
+        try {
+            return Long.valueOf(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // reads the whole row so the cache can serve any projection of it later,
+    // null if there's no such row
+    private Cursor queryAndCache(SQLiteDatabase db, long id, String[] projection) {
+        long generation = ROWS.generation();
+        Cursor full = db.query(MyContentDescriptor.Categories.TABLE_NAME, null,
+                MyContentDescriptor.Categories.Cols.cat_id + "=?",
+                new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            if (!full.moveToFirst())
+                return null;
+            ROWS.put(id, full, generation);
+            Cursor cached = ROWS.project(id, projection);
+            if (cached != null)
+                return cached;
+            // raced a write, or a projection the cache can't do
+            return db.query(MyContentDescriptor.Categories.TABLE_NAME, projection,
+                    MyContentDescriptor.Categories.Cols.cat_id + "=?",
+                    new String[] { String.valueOf(id) }, null, null, null);
+        } finally {
+            full.close();
+        }
+    }
+
+    // the ids a selection is about to touch, or null if there are too many
+    // for per-row notifications to be worth it
+    private List<Long> matchingIds(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor c = db.query(MyContentDescriptor.Categories.TABLE_NAME,
+                new String[] { MyContentDescriptor.Categories.Cols.cat_id },
+                selection, selectionArgs, null, null, null,
+                String.valueOf(ChangeNotifier.MAX_ROW_URIS + 1));
+        try {
+            if (c.getCount() > ChangeNotifier.MAX_ROW_URIS)
+                return null;
+            List<Long> ids = new ArrayList<Long>(c.getCount());
+            for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext())
+                ids.add(c.getLong(0));
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    // null ids means the whole collection
+    private void changed(List<Long> ids) {
+        if (ids == null) {
+            ROWS.clear();
+        } else {
+            for (Long id : ids)
+                ROWS.invalidate(id);
+        }
+        List<Long> batch = batchChanges.get();
+        if (batch != null) {
+            if (ids == null)
+                batch.add(COLLECTION);
+            else
+                batch.addAll(ids);
+            return;
+        }
+        if (ids == null) {
+            notifier.collectionChanged();
+            return;
+        }
+        for (Long id : ids) {
+            if (id.equals(COLLECTION))
+                notifier.collectionChanged();
+            else
+                notifier.rowChanged(id);
+        }
+    }
  
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+package io.trigger.forge.android.modules.contprov;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+// Least recently used categories rows by _id, for the categories/{id} lookups.
+// The provider drops rows from it whenever it writes them.
+public class RowCache {
+
+    public static final int MAX_ROWS = 256;
+
+    private final Map<Long, Object[]> rows = new LinkedHashMap<Long, Object[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Object[]> eldest) {
+            return size() > MAX_ROWS;
+        }
+    };
+    private String[] columns;// every row is cached whole, in this column order
+    private long hits = 0, misses = 0;
+    // bumped by every invalidation, so a read that raced a write can't cache what it saw
+    private long generation = 0;
+
+    // null on a miss, or when the projection asks for something that isn't a plain column
+    public synchronized Cursor get(long id, String[] projection) {
+        Cursor c = project(id, projection);
+        if (c == null)
+            misses++;
+        else
+            hits++;
+        return c;
+    }
+
+    // get, without counting towards the stats
+    synchronized Cursor project(long id, String[] projection) {
+        Object[] row = rows.get(id);
+        int[] indices = row == null ? null : indices(projection);
+        if (indices == null)
+            return null;
+        Object[] projected = new Object[indices.length];
+        for (int i = 0; i < indices.length; i++)
+            projected[i] = row[indices[i]];
+        MatrixCursor c = new MatrixCursor(projection == null ? columns : projection, 1);
+        c.addRow(projected);
+        return c;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    // c has to be the full row (null projection), positioned on it.
+    // generation is what generation() said before the row was read
+    public synchronized void put(long id, Cursor c, long generation) {
+        if (generation != this.generation)
+            return;
+        String[] names = c.getColumnNames();
+        if (columns == null)
+            columns = names;
+        else if (!Arrays.equals(columns, names))
+            return;
+        Object[] row = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            if (c.isNull(i))
+                row[i] = null;
+            else if (names[i].equals(MyContentDescriptor.Categories.Cols.cat_id))
+                row[i] = c.getLong(i);
+            else
+                row[i] = c.getString(i);
+        }
+        rows.put(id, row);
+    }
+
+    public synchronized void invalidate(long id) {
+        generation++;
+        rows.remove(id);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        rows.clear();
+    }
+
+    private int[] indices(String[] projection) {
+        if (projection == null)
+            projection = columns;
+        int[] indices = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            indices[i] = -1;
+            for (int j = 0; j < columns.length; j++)
+                if (columns[j].equals(projection[i]))
+                    indices[i] = j;
+            if (indices[i] < 0)
+                return null;
+        }
+        return indices;
+    }
+
+    public synchronized JSONObject stats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("size", rows.size());
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", hits + misses == 0 ? 0 : hits / (double) (hits + misses));
+        return stats;
+    }
+}
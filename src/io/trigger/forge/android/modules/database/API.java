@@ -1,10 +1,29 @@
 package io.trigger.forge.android.modules.database;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.database.SQLException;
 import android.os.AsyncTask;
 import android.util.Log;
 import android.view.ViewGroup;
@@ -12,10 +31,15 @@ import android.view.ViewGroup;
 import io.trigger.forge.android.core.ForgeApp;
 import io.trigger.forge.android.core.ForgeParam;
 import io.trigger.forge.android.core.ForgeTask;
+import io.trigger.forge.android.modules.recorder.Replayer;
+import io.trigger.forge.android.modules.recorder.Tracer;
 
 
 public class API {
-	private static NotesDatabase notesDB;
+	private static volatile NotesDatabase notesDB;
+	private static volatile NotesDatabase replayDB;//recorder.replay's copy of the notes, see replayInto
+	private static int replays = 0;//how many replays are using it, guarded by API.class
+	static final String REPLAY = "Replay";
 	
 	private static class DatabaseTask extends AsyncTask {
 		private Runnable toRun;
@@ -29,20 +53,46 @@ public class API {
 			return null;
 		}
 		public static void runTask(Runnable r){
-			new DatabaseTask(r).execute();
+			new DatabaseTask(Tracer.wrap(r)).execute();
 		}
 		
 	}
 
+	//Opens the database file the first time, so only from inside a DatabaseTask
 	private static void initDB(){
+		initDB(ForgeApp.getActivity());
+	}
+	
+	private static synchronized void initDB(Context context){
 		Log.e("init notesdb: ","INITING NOTES DB");
 
 		if(notesDB == null){
 			Log.e("init notesdb: ","FO REALS");
-			notesDB = new NotesDatabase(ForgeApp.getActivity());
+			NotesDatabase db = new NotesDatabase(context);
+			Spill.init(context.getCacheDir());
+			WriteBehind overlay = new WriteBehind(db, db.pages, new File(context.getFilesDir(), "writebehind"));
+			try{
+				int recovered = overlay.recover();
+				if(recovered > 0) Log.w("write behind", "put back " + recovered + " notes from the journal");
+			}catch(Exception e){
+				e.printStackTrace();//the journal's still there, next start has another go
+			}
+			db.behind = overlay;
+			notesDB = db;
 		}
 	}
 	
+	//Which database a call works on, once initDB has run: the copy for recorder.replay's calls
+	//(see Replayer.isScratch), the notes for everything else
+	private static NotesDatabase db(ForgeTask task){
+		if(!Replayer.isScratch(task))
+			return notesDB;
+		NotesDatabase scratch = replayDB;
+		if(scratch == null)
+			throw new IllegalStateException("the replay's copy of the notes has been thrown away already");
+		return scratch;
+	}
+	
 	public static void createTables(final ForgeTask task, @ForgeParam("schema") final JsonArray schema){
 		DatabaseTask.runTask(new Runnable(){
 			@Override
@@ -50,7 +100,9 @@ public class API {
 				try{
 					NotesDatabase.setQueries(schema);
 					initDB();
-					notesDB.createTables(schema);
+					NotesDatabase db = db(task);
+					db.createTables(schema);
+					db.pages.invalidate();
 					task.success();
 				}catch( Exception e){
 					error(task, e);
@@ -64,14 +116,30 @@ public class API {
 		task.error(e);
 	}
 	
+	//Every other write waits for edits still in the write-behind overlay, so they land in order.
+	//Reads see them anyway, NotesDatabase patches them in
+	private static int drain(NotesDatabase db) throws Exception{
+		return db.behind == null ? 0 : db.behind.flush();
+	}
+	
+	//app's going into the background, see EventListener
+	static void flushSoon(){
+		NotesDatabase db = notesDB;
+		if(db != null && db.behind != null) db.behind.flushSoon();
+	}
+	
 
 	public static void query(final ForgeTask task, @ForgeParam("query") final String query){
-		initDB();
 		DatabaseTask.runTask(new Runnable(){
 			@Override
 			public void run() {
 				try{
-					task.success(notesDB.queryToObjects(query));
+					initDB();
+					NotesDatabase db = db(task);
+					long start = System.nanoTime();
+					JsonElement toRet = db.queryWithBudget(query, true, Spill.budget);
+					db.timings.record("read", System.nanoTime() - start);
+					task.success(toRet);
 				}catch( Exception e){
 					error(task, e);
 				}
@@ -79,19 +147,146 @@ public class API {
 		});
 	}
 	
-	public static void multiQuery(final ForgeTask task, @ForgeParam("queries") final JsonArray queries){
-		initDB();
+	//query without its limit clause, the page gets appended here. Once a page is served the
+	//one after it is fetched in the background, so scrolling on usually comes out of memory
+	public static void queryPage(final ForgeTask task, @ForgeParam("query") final String query,
+			@ForgeParam("skip") final int skip, @ForgeParam("limit") final int limit){
 		DatabaseTask.runTask(new Runnable(){
 			@Override
 			public void run() {
 				try{
-					notesDB.open();
-					JsonArray toRet = new JsonArray();
-					for(int i = 0; i < queries.size(); i++){
-						JsonElement query = queries.get(i);
-						toRet.add(notesDB.queryToObjects(query.getAsString(), false));
+					initDB();
+					NotesDatabase db = db(task);
+					JsonArray page = db.pages.take(PageCache.key(query, skip, limit));
+					if(page == null){
+						long start = System.nanoTime();
+						page = db.queryToObjects(PageCache.pageQuery(query, skip, limit));
+						db.timings.record("read", System.nanoTime() - start);
+					}else{
+						db.patched(page);//fetched before the latest edits, a flush would have thrown it away
 					}
-					notesDB.close();
+					task.success(page);
+					if(page.size() == limit)
+						prefetch(db, query, skip + limit, limit);
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	private static void prefetch(final NotesDatabase db, final String query, final int skip, final int limit){
+		final String key = PageCache.key(query, skip, limit);
+		if(db.pages.contains(key))
+			return;
+		final long generation = db.pages.generation();
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					db.pages.put(key, db.queryToObjects(PageCache.pageQuery(query, skip, limit)), generation);
+				}catch( Exception e){
+					e.printStackTrace();//nobody's waiting on this one
+				}
+			}
+		});
+	}
+	
+	//A page of note summaries for the notes list, newest first: {localID, id, preview, timestamp,
+	//status, hashtags: [...], attags, emails, urls}. All optional, where (a where clause on those
+	//columns), skip (default 0) and limit (default 25). See Summaries
+	public static void summaries(final ForgeTask task){
+		final String where = task.params.optString("where");
+		final int skip = task.params.optInt("skip", 0), limit = task.params.optInt("limit", 25);
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					long start = System.nanoTime();
+					JsonArray toRet = db.summaries(where, skip, limit);
+					db.timings.record("read", System.nanoTime() - start);
+					task.success(toRet);
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	//same as query, but the given columns only come back as their first `length` chars,
+	//and compressed ones are only inflated that far
+	public static void preview(final ForgeTask task, @ForgeParam("query") final String query,
+			@ForgeParam("columns") final JsonArray columns, @ForgeParam("length") final int length){
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					Set<String> previewColumns = new HashSet<String>();
+					for(int i = 0; i < columns.size(); i++)
+						previewColumns.add(columns.get(i).getAsString());
+					task.success(db.queryWithBudget(query, true, previewColumns, length, Spill.budget));
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	//query, preview and multiQuery results bigger than about this many bytes go to a file
+	//and come back as {spill, rows, bytes, peakBytes} instead of the rows, see Spill
+	public static void setResultBudget(final ForgeTask task, @ForgeParam("bytes") final long bytes){
+		Spill.budget = bytes;
+		task.success();
+	}
+	
+	//{rows, done}: the next `limit` rows (default 500) of a spilled result. Once done's
+	//true the file's gone, closeSpill gets rid of it sooner.
+	//database.js's _pageSpill hands these over a chunk at a time. _unspill puts them back into
+	//one array for callers that want one, which bounds the bridge but not the page's memory
+	public static void readSpill(final ForgeTask task, @ForgeParam("spill") final String spill){
+		final int limit = task.params.optInt("limit", 500);
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					task.success(Spill.read(spill, limit));
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	public static void closeSpill(final ForgeTask task, @ForgeParam("spill") final String spill){
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				Spill.close(spill);
+				task.success();
+			}
+		});
+	}
+	
+	//strings at least this long get compressed by writes that ask for it
+	public static void setCompressionThreshold(final ForgeTask task, @ForgeParam("threshold") final int threshold){
+		Compression.threshold = threshold;
+		task.success();
+	}
+	
+	public static void multiQuery(final ForgeTask task, @ForgeParam("queries") final JsonArray queries){
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					long start = System.nanoTime();
+					JsonArray toRet = multiQuery(db, queries);
+					db.timings.record("read", System.nanoTime() - start);
 					task.success(toRet);
 				}catch( Exception e){
 					error(task, e);
@@ -102,18 +297,118 @@ public class API {
 
 		
 	public static void writeAll(final ForgeTask task, @ForgeParam("queries") final JsonArray queries){
-		initDB();
 		DatabaseTask.runTask(new Runnable(){
 			@Override
 			public void run() {
 				try{
-					notesDB.open();
-					JsonArray toRet = new JsonArray();
-					for(int i = 0; i < queries.size(); i++){
-						JsonObject query = queries.get(i).getAsJsonObject();
-						toRet.add(new JsonPrimitive(notesDB.writeQuery(query.get("query").getAsString(), query.get("args").getAsJsonArray())));
+					initDB();
+					NotesDatabase db = db(task);
+					drain(db);
+					long start = System.nanoTime();
+					String durability = task.params.optString("durability");
+					db.pages.invalidate();
+					JsonArray toRet = writeAll(db, queries, durability);
+					db.pages.invalidate();
+					recordWrite(db, durability, start);
+					task.success(toRet);
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	//steps: reads and writes where later ones can use what earlier ones came back with, see Pipeline.
+	//All done in one go, and all the results come back together. Optional transaction (default
+	//false) makes it all or nothing, durability as for writeAll
+	public static void pipeline(final ForgeTask task, @ForgeParam("steps") final JsonArray steps){
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					drain(db);
+					long start = System.nanoTime();
+					String durability = task.params.optString("durability");
+					db.pages.invalidate();
+					JsonArray toRet = new Pipeline(db).run(steps, task.params.optBoolean("transaction"), durability);
+					db.pages.invalidate();
+					db.timings.record("pipeline", System.nanoTime() - start);
+					task.success(toRet);
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	//What multiQuery and writeAll actually do to the database, on whichever one they're given.
+	//Each holds the database from open to close, so a flush can't close it underneath them,
+	//each result is its rows, or a spill handle if it went over the budget
+	static JsonArray multiQuery(NotesDatabase db, JsonArray queries) throws IOException{
+		synchronized(db){
+			db.open();
+			JsonArray toRet = new JsonArray();
+			try{
+				for(int i = 0; i < queries.size(); i++){
+					JsonElement query = queries.get(i);
+					toRet.add(db.queryWithBudget(query.getAsString(), false, Spill.budget));
+				}
+			}finally{
+				db.close();
+			}
+			return toRet;
+		}
+	}
+	
+	static JsonArray writeAll(NotesDatabase db, JsonArray queries, String durability){
+		synchronized(db){
+			db.open();
+			JsonArray toRet = new JsonArray();
+			try{
+				db.setDurability(durability);
+				for(int i = 0; i < queries.size(); i++){
+					JsonObject query = queries.get(i).getAsJsonObject();
+					boolean compress = query.has("compress") && query.get("compress").getAsBoolean();
+					if(query.has("rows"))
+						toRet.add(db.writeBatch(query.get("query").getAsString(), query.get("rows").getAsJsonArray(), compress));
+					else
+						toRet.add(new JsonPrimitive(db.writeQuery(query.get("query").getAsString(), query.get("args").getAsJsonArray(), compress)));
+				}
+			}finally{
+				db.restoreDurability();
+				db.close();
+			}
+			return toRet;
+		}
+	}
+	
+	//same query for every row, so only send it once: {query: "insert ... values (?,?)", rows: [[1,"#a"],[1,"#b"]]}
+	public static void writeBatch(final ForgeTask task, @ForgeParam("query") final String query, @ForgeParam("rows") final JsonArray rows){
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					drain(db);
+					long start = System.nanoTime();
+					String durability = task.params.optString("durability");
+					db.pages.invalidate();
+					JsonArray toRet;
+					synchronized(db){//see writeAll
+						db.open();
+						try{
+							db.setDurability(durability);
+							toRet = db.writeBatch(query, rows, task.params.optBoolean("compress"));
+						}finally{
+							db.restoreDurability();
+							db.close();
+						}
 					}
-					notesDB.close();
+					db.pages.invalidate();
+					recordWrite(db, durability, start);
 					task.success(toRet);
 				}catch( Exception e){
 					error(task, e);
@@ -122,13 +417,337 @@ public class API {
 		});
 	}
 		
+	//Saves a note's text (and optional timestamp and status), then redoes its entity rows from it.
+	//With writeBehind on it's acked once it's in the journal and written out in the next flush,
+	//otherwise straight away in a transaction of its own
+	public static void editNote(final ForgeTask task, @ForgeParam("localID") final long localID, @ForgeParam("text") final String text){
+		String timestamp = task.params.has("timestamp") ? task.params.optString("timestamp") : null;
+		String status = task.params.has("status") ? task.params.optString("status") : null;
+		final WriteBehind.Edit edit = new WriteBehind.Edit(localID, text, timestamp, status);
+		NotesDatabase target = Replayer.isScratch(task) ? replayDB : notesDB;
+		WriteBehind overlay = target == null ? null : target.behind;
+		if(overlay != null && overlay.isEnabled()){
+			overlay.edit(edit, task);
+			return;
+		}
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					drain(db);
+					long start = System.nanoTime();
+					db.pages.invalidate();
+					db.applyEdits(Collections.singletonList(edit));
+					db.pages.invalidate();
+					db.timings.record("write", System.nanoTime() - start);
+					task.success();
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	//Turns the editNote overlay on or off, off writes out whatever's waiting. Optional
+	//flushMillis (default 1000) and maxPending (default 50), see WriteBehind. Its stats
+	public static void writeBehind(final ForgeTask task, @ForgeParam("on") final boolean on){
+		final long flushMillis = task.params.optLong("flushMillis", 1000);
+		final int maxPending = task.params.optInt("maxPending", 50);
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					db.behind.configure(on, flushMillis, maxPending);
+					task.success(db.behind.stats());
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	//writes out the overlay now, how many notes that was
+	public static void flush(final ForgeTask task){
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					task.success(new JsonPrimitive(drain(db)));
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	//autocomplete for # and @, kind is "hashtags" or "attags"
+	public static void complete(final ForgeTask task, @ForgeParam("prefix") final String prefix,
+			@ForgeParam("kind") final String kind, @ForgeParam("limit") final int limit){
+		NotesDatabase target = Replayer.isScratch(task) ? replayDB : notesDB;
+		if(target != null && target.entities.isBuilt()){//straight out of memory, no need to queue behind the database
+			task.success(target.entities.complete(prefix, kind, limit));
+			return;
+		}
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					task.success(db.complete(prefix, kind, limit));
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	private static void recordWrite(NotesDatabase db, String durability, long start){
+		db.timings.record("write:" + (durability.length() > 0 ? durability : "default"), System.nanoTime() - start);
+	}
+	
+	//the storage profile the last connection was opened with, what sqlite actually
+	//applied, and read/write/open timings since startup
+	public static void diagnostics(final ForgeTask task){
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					JsonObject result = db.diagnostics();
+					JsonObject pageCache = new JsonObject();
+					pageCache.addProperty("hits", db.pages.hits());
+					pageCache.addProperty("misses", db.pages.misses());
+					result.add("pageCache", pageCache);
+					result.add("results", Spill.stats());
+					result.add("writeBehind", db.behind.stats());
+					task.success(result);
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+		
+	//Not a bridge call, for native code (push) with server notes for the store that JS
+	//hasn't seen. Runs on the caller's thread, so keep it off the UI thread.
+	//JS only hears about it once it's committed, as a database.synced event
+	public static int applyDeltas(Context context, JsonArray notes) throws SQLException {
+		if(notesDB == null && !context.getDatabasePath("Main").exists())
+			return 0;//JS hasn't made the tables yet, its first sync will get these anyway
+		initDB(context);
+		try{
+			drain(notesDB);
+		}catch(Exception e){
+			e.printStackTrace();//they're still in the overlay, and newer than anything the server has
+		}
+		long start = System.nanoTime();
+		notesDB.pages.invalidate();
+		int applied = notesDB.applyDeltas(notes);
+		notesDB.pages.invalidate();
+		notesDB.timings.record("write:push", System.nanoTime() - start);
+		try{
+			JSONObject event = new JSONObject();
+			event.put("source", "push");
+			event.put("applied", applied);
+			ForgeApp.event("database.synced", event);
+		}catch(JSONException e){
+			e.printStackTrace();
+		}
+		return applied;
+	}
+	
+	//Not a bridge call, for recorder.replay. on: replayed calls (see Replayer.isScratch) go to a
+	//copy of the notes from here on, so their writes can't touch them. The app's own calls still
+	//get the real notes. off: once every replay that turned it on has, the copy's deleted
+	public static synchronized void replayInto(Context context, boolean on) throws Exception {
+		initDB(context);
+		if(on ? replays++ > 0 : replays == 0 || --replays > 0)
+			return;
+		if(on){
+			drain(notesDB);
+			context.deleteDatabase(REPLAY);
+			synchronized(notesDB){//nobody's between an open and a close, so the file's all there
+				for(String suffix : new String[]{"", "-wal"}){
+					File from = context.getDatabasePath("Main" + suffix);
+					if(from.exists()) copy(from, context.getDatabasePath(REPLAY + suffix));
+				}
+			}
+			File journals = new File(context.getFilesDir(), "writebehind-" + REPLAY);
+			File[] left = journals.listFiles();
+			for(int i = 0; left != null && i < left.length; i++) left[i].delete();
+			NotesDatabase scratch = new NotesDatabase(context, REPLAY);
+			scratch.behind = new WriteBehind(scratch, scratch.pages, journals);
+			replayDB = scratch;
+		}else{
+			NotesDatabase scratch = replayDB;
+			replayDB = null;
+			synchronized(scratch){
+				scratch.close();
+				context.deleteDatabase(REPLAY);
+			}
+		}
+	}
+	
+	private static void copy(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try{
+			OutputStream out = new FileOutputStream(to);
+			try{
+				byte[] buffer = new byte[64 * 1024];
+				for(int read = in.read(buffer); read > 0; read = in.read(buffer)) out.write(buffer, 0, read);
+			}finally{
+				out.close();
+			}
+		}finally{
+			in.close();
+		}
+	}
+	
+	//Streams Notes and the entity tables (or just `tables`) to `file`, a path or a name in
+	//snapshots/. database.progress events {stream, op, table, rows, bytes, fraction} while it
+	//goes, stream being this call's id, then {file, tables: {name: rows}, rows, bytes, checksum}.
+	//See Snapshot for the format
+	public static void exportSnapshot(final ForgeTask task, @ForgeParam("file") final String file){
+		final List<String> tables = new ArrayList<String>();
+		JSONArray asked = task.params.optJSONArray("tables");
+		for(int i = 0; asked != null && i < asked.length(); i++) tables.add(asked.optString(i));
+		if(tables.isEmpty()){
+			tables.add("Notes");
+			tables.addAll(NoteEntities.TABLES.values());
+		}
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					drain(db);
+					task.success(db.exportTo(snapshot(file), tables, progress(task, "export")));
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	//Puts back what exportSnapshot wrote, replacing whatever's in those tables. All or nothing,
+	//it only commits once every checksum in the file has matched. Same events and result as
+	//exportSnapshot, and a database.synced {source: "import", applied} once it's in
+	public static void importSnapshot(final ForgeTask task, @ForgeParam("file") final String file){
+		DatabaseTask.runTask(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					initDB();
+					NotesDatabase db = db(task);
+					drain(db);
+					db.pages.invalidate();
+					JsonObject result = db.importFrom(snapshot(file), progress(task, "import"));
+					db.pages.invalidate();
+					JSONObject event = new JSONObject();
+					event.put("source", "import");
+					event.put("applied", result.get("rows").getAsLong());
+					ForgeApp.event("database.synced", event);
+					task.success(result);
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		});
+	}
+	
+	private static File snapshot(String file){
+		File snapshot = new File(file);
+		return snapshot.isAbsolute() ? snapshot : new File(new File(ForgeApp.getActivity().getFilesDir(), "snapshots"), file);
+	}
+	
+	//a few a second at most, and always the last one
+	private static Snapshot.Progress progress(final ForgeTask task, final String op){
+		return new Snapshot.Progress(){
+			private long sent = 0;
+			@Override
+			public void progress(String table, long rows, long bytes, double fraction) {
+				long now = System.currentTimeMillis();
+				if(now - sent < 250 && fraction < 1)
+					return;
+				sent = now;
+				try{
+					JSONObject event = new JSONObject();
+					event.put("stream", task.callid);
+					event.put("op", op);
+					event.put("table", table);
+					event.put("rows", rows);
+					event.put("bytes", bytes);
+					event.put("fraction", Math.min(1, fraction));
+					ForgeApp.event("database.progress", event);
+				}catch(JSONException e){
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+	
+	//Optional sizes (default [100, 1000, 10000]) and iterations (default 200).
+	//Runs on its own scratch database, the notes are never touched, see Benchmark
+	public static void benchmark(final ForgeTask task){
+		final JsonArray sizes = new JsonArray();
+		JSONArray asked = task.params.optJSONArray("sizes");
+		for(int i = 0; asked != null && i < asked.length(); i++) sizes.add(new JsonPrimitive(asked.optInt(i)));
+		if(sizes.size() == 0) for(int size : new int[]{100, 1000, 10000}) sizes.add(new JsonPrimitive(size));
+		final int iterations = task.params.optInt("iterations", 200);
+		new Thread(new Runnable(){//minutes at 100k notes, too long to hold up the AsyncTask pool
+			@Override
+			public void run() {
+				try{
+					task.success(new Benchmark(ForgeApp.getActivity(), iterations).run(sizes));
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		}, "benchmark").start();
+	}
+	
+	//Optional threads (default [1, 2, 4, 8]), seconds per thread count (default 5) and
+	//mix ({query, multiQuery, write, update, drop} weights). Scratch database, see StressTest
+	public static void stress(final ForgeTask task){
+		final JsonArray threads = new JsonArray();
+		JSONArray asked = task.params.optJSONArray("threads");
+		for(int i = 0; asked != null && i < asked.length(); i++) threads.add(new JsonPrimitive(asked.optInt(i)));
+		if(threads.size() == 0) for(int count : new int[]{1, 2, 4, 8}) threads.add(new JsonPrimitive(count));
+		JSONObject mix = task.params.optJSONObject("mix");
+		final JsonObject weights = mix == null ? null : new JsonParser().parse(mix.toString()).getAsJsonObject();
+		final long millis = (long) (task.params.optDouble("seconds", 5) * 1000);
+		new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					task.success(new StressTest(ForgeApp.getActivity(), millis, weights).run(threads));
+				}catch( Exception e){
+					error(task, e);
+				}
+			}
+		}, "stress").start();
+	}
+	
 	public static void dropTables(final ForgeTask task, @ForgeParam("tables") final JsonArray tables){
-		initDB();
 		DatabaseTask.runTask(new Runnable(){
 			@Override
 			public void run() {
 				try{
-					notesDB.dropTables(tables);
+					initDB();
+					NotesDatabase db = db(task);
+					drain(db);
+					db.pages.invalidate();
+					db.dropTables(tables);
+					db.pages.invalidate();
 					task.success();
 				}catch( Exception e){
 					error(task, e);
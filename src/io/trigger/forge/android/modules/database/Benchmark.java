@@ -0,0 +1,209 @@
+package io.trigger.forge.android.modules.database;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import android.content.Context;
+import android.os.Debug;
+
+//Times the hot paths (writeBatch, writeQuery, queryToObjects/cursorToArray, the multiQuery
+//and writeAll loops) against a scratch database filled with made up notes, for each size asked
+//for. Every case reports ops/s, mean microseconds per op and bytes allocated per op, after a warmup.
+//Notes get entities the way real ones do: most have a tag or two out of a few hundred,
+//the popular ones far more often, some have an @contact, a few a url or an email.
+class Benchmark {
+	static final String NAME = "Benchmark";
+	private static final int TAGS = 300, CONTACTS = 50, PAGE = 100;
+	private static final String[] WORDS = ("call pick up remember buy milk meeting with about the for "
+			+ "tomorrow idea book read later lunch notes draft send review fix").split(" ");
+
+	private final Context context;
+	private final int iterations;
+	private final Random random = new Random(42);//same notes every run
+
+	Benchmark(Context context, int iterations) {
+		this.context = context;
+		this.iterations = Math.max(1, iterations);
+	}
+
+	private interface Case {
+		void run(int i) throws Exception;
+	}
+
+	@SuppressWarnings("deprecation")
+	JsonObject run(JsonArray sizes) throws Exception {
+		JsonObject report = new JsonObject();
+		Debug.startAllocCounting();
+		try{
+			for(int s = 0; s < sizes.size(); s++){
+				int size = sizes.get(s).getAsInt();
+				context.deleteDatabase(NAME);
+				NotesDatabase db = new NotesDatabase(context, NAME);
+				try{
+					report.add(String.valueOf(size), run(db, size));
+				}finally{
+					db.close();
+					context.deleteDatabase(NAME);
+				}
+			}
+		}finally{
+			Debug.stopAllocCounting();
+		}
+		return report;
+	}
+
+	private JsonObject run(final NotesDatabase db, final int size) throws Exception {
+		JsonObject results = new JsonObject();
+		db.createTables(schema());
+		db.open();
+
+		final JsonArray notes = new JsonArray(), tags = new JsonArray(), contacts = new JsonArray(),
+				urls = new JsonArray(), emails = new JsonArray();
+		for(int i = 0; i < size; i++)
+			notes.add(NotesDatabase.args(note(i), "bench" + i, String.valueOf(i), "synced"));
+		final String insertNote = "insert into Notes (text, id, timestamp, status) values (?,?,?,?)";
+		long start = System.nanoTime();
+		long allocated = allocated();
+		JsonArray ids = db.writeBatch(insertNote, notes);
+		for(int i = 0; i < ids.size(); i++){
+			long localID = ids.get(i).getAsLong();
+			String text = notes.get(i).getAsJsonArray().get(0).getAsString();
+			for(Map.Entry<String, List<String>> found : NoteEntities.find(text).entrySet()){
+				JsonArray rows = found.getKey().equals("hashtags") ? tags : found.getKey().equals("attags") ? contacts
+						: found.getKey().equals("urls") ? urls : emails;
+				for(String entity : found.getValue()) rows.add(NotesDatabase.args(localID, entity));
+			}
+		}
+		db.writeBatch("insert into NoteTag (localID , hashtags) values (?,?)", tags);
+		db.writeBatch("insert into NoteContact (localID , attags) values (?,?)", contacts);
+		db.writeBatch("insert into NoteURL (localID , urls) values (?,?)", urls);
+		db.writeBatch("insert into NoteEmail (localID , emails) values (?,?)", emails);
+		results.add("populate", result(1, System.nanoTime() - start, allocated() - allocated, size));
+		results.addProperty("entityRows", tags.size() + contacts.size() + urls.size() + emails.size());
+
+		final int offset = size;
+		results.add("writeQuery", measure(new Case(){
+			public void run(int i) throws Exception {
+				db.writeQuery("insert into Notes (text, id, timestamp, status) values (?,?,?,?)",
+						NotesDatabase.args(note(i), "extra" + (offset + i), String.valueOf(offset + i), "dirty"));
+			}
+		}));
+		results.add("writeBatch", measure(new Case(){
+			public void run(int i) throws Exception {
+				JsonArray rows = new JsonArray();
+				for(int j = 0; j < 10; j++) rows.add(NotesDatabase.args((long) (i % size) + 1, "#bench" + j));
+				db.writeBatch("insert into NoteTag (localID , hashtags) values (?,?)", rows);
+			}
+		}));
+		results.add("writeAll", measure(new Case(){
+			public void run(int i) throws Exception {
+				//what API.writeAll does for one note: the note, then its entities
+				long localID = (i % size) + 1;
+				db.writeQuery("update Notes set text=?, status=? where localID=?", NotesDatabase.args(note(i), "dirty", localID));
+				db.writeQuery("delete from NoteTag where localID=?", NotesDatabase.args(localID));
+				db.writeBatch("insert into NoteTag (localID , hashtags) values (?,?)", NotesDatabase.args(NotesDatabase.args(localID, "#tag" + i % TAGS)));
+			}
+		}));
+		results.add("queryPage", measure(new Case(){
+			public void run(int i) throws Exception {
+				db.queryToObjects("select * from Notes order by timestamp desc limit " + PAGE
+						+ " offset " + (i * PAGE) % Math.max(1, size), false);
+			}
+		}));
+		results.add("queryByTag", measure(new Case(){
+			public void run(int i) throws Exception {
+				db.queryToObjects("select * from Notes where localID in (select localID from NoteTag where hashtags='"
+						+ tag() + "') limit " + PAGE, false);
+			}
+		}));
+		results.add("multiQuery", measure(new Case(){
+			public void run(int i) throws Exception {
+				//what API.multiQuery does with the queries the notes screen makes
+				JsonArray all = new JsonArray();
+				all.add(db.queryToObjects("select * from Notes order by timestamp desc limit " + PAGE, false));
+				all.add(db.queryToObjects("select hashtags as name, count(*) as count from NoteTag group by hashtags", false));
+				all.add(db.queryToObjects("select attags as name, count(*) as count from NoteContact group by attags", false));
+			}
+		}));
+		if(size <= 10000){//the whole table in one JsonArray, past this it's just measuring the heap
+			results.add("queryAll", measure(new Case(){
+				public void run(int i) throws Exception {
+					db.queryToObjects("select * from Notes", false);
+				}
+			}));
+		}
+		db.close();
+		return results;
+	}
+
+	private JsonObject measure(Case c) throws Exception {
+		for(int i = 0; i < Math.min(iterations, 20); i++)
+			c.run(i);
+		long allocated = allocated();
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			c.run(i);
+		return result(iterations, System.nanoTime() - start, allocated() - allocated, 1);
+	}
+
+	private static JsonObject result(int ops, long nanos, long bytes, int rowsPerOp) {
+		JsonObject result = new JsonObject();
+		result.addProperty("ops", ops);
+		result.addProperty("opsPerSecond", ops * 1e9 / Math.max(1, nanos));
+		result.addProperty("meanMicros", nanos / 1000.0 / ops);
+		if(rowsPerOp > 1) result.addProperty("rowsPerSecond", (double) ops * rowsPerOp * 1e9 / Math.max(1, nanos));
+		result.addProperty("bytesPerOp", bytes < 0 ? -1 : bytes / ops);
+		return result;
+	}
+
+	//bytes this thread has allocated since run started counting, -1 if the VM won't say
+	@SuppressWarnings("deprecation")
+	private static long allocated() {
+		try{
+			return Debug.getThreadAllocSize();
+		}catch(Throwable t){
+			return -1;
+		}
+	}
+
+	private String note(int i) {
+		StringBuilder text = new StringBuilder();
+		int words = 4 + random.nextInt(20);
+		for(int w = 0; w < words; w++) text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		double roll = random.nextDouble();
+		if(roll < 0.7) text.append(tag()).append(' ');
+		if(roll < 0.3) text.append(tag()).append(' ');
+		if(random.nextDouble() < 0.25) text.append("@person").append(random.nextInt(CONTACTS)).append(' ');
+		if(random.nextDouble() < 0.05) text.append("http://example.com/").append(i).append(' ');
+		if(random.nextDouble() < 0.03) text.append("someone").append(i).append("@example.com");
+		return text.toString();
+	}
+
+	//popular tags much more likely than the rest
+	private String tag() {
+		double u = random.nextDouble();
+		return "#tag" + (int) (TAGS * u * u * u);
+	}
+
+	//the same tables database.js makes
+	static JsonArray schema() {
+		JsonArray schema = new JsonArray();
+		schema.add(table("Notes", "(text TEXT, localID INTEGER PRIMARY KEY , id TEXT UNIQUE, timestamp TEXT, status TEXT)"));
+		schema.add(table("NoteTag", "(localID INTEGER, hashtags TEXT)"));
+		schema.add(table("NoteContact", "(localID INTEGER, attags TEXT)"));
+		schema.add(table("NoteEmail", "(localID INTEGER, emails TEXT)"));
+		schema.add(table("NoteURL", "(localID INTEGER, urls TEXT)"));
+		return schema;
+	}
+
+	private static JsonObject table(String name, String columns) {
+		JsonObject table = new JsonObject();
+		table.addProperty("name", name);
+		table.addProperty("schema", columns);
+		return table;
+	}
+}
@@ -0,0 +1,104 @@
+package io.trigger.forge.android.modules.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//Big note bodies (web clips are mostly html) get stored as deflated blobs.
+//Packed values start with MAGIC and the uncompressed byte length, so anything
+//else that happens to be a blob is left alone.
+class Compression {
+	private static final byte[] MAGIC = new byte[]{'F','N','Z','1'};
+	private static final int HEADER = MAGIC.length + 4;
+	private static final String UTF8 = "UTF-8";
+
+	//in chars, anything shorter isn't worth the cpu
+	static volatile int threshold = 4096;
+
+	//Returns either the string itself or its packed bytes, whichever should be stored
+	static Object pack(String value) {
+		if(value == null || value.length() < threshold)
+			return value;
+		try{
+			byte[] raw = value.getBytes(UTF8);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(raw);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + HEADER);
+			out.write(MAGIC, 0, MAGIC.length);
+			writeInt(out, raw.length);
+			byte[] buffer = new byte[4096];
+			while(!deflater.finished()){
+				int n = deflater.deflate(buffer);
+				out.write(buffer, 0, n);
+			}
+			deflater.end();
+			if(out.size() >= raw.length)
+				return value;//didn't shrink, don't bother
+			return out.toByteArray();
+		}catch(UnsupportedEncodingException e){
+			return value;
+		}
+	}
+
+	static boolean isPacked(byte[] blob) {
+		if(blob == null || blob.length < HEADER)
+			return false;
+		for(int i = 0; i < MAGIC.length; i++)
+			if(blob[i] != MAGIC[i]) return false;
+		return true;
+	}
+
+	static String unpack(byte[] blob) {
+		return inflate(blob, readInt(blob, MAGIC.length), -1);
+	}
+
+	//Only inflates as much as it takes to get the first `chars` characters
+	static String preview(byte[] blob, int chars) {
+		int length = readInt(blob, MAGIC.length);
+		//3 bytes covers any char in the BMP, the extra 3 is for a sequence split at the end
+		int wanted = Math.min(length, chars * 3 + 3);
+		return inflate(blob, wanted, chars);
+	}
+
+	static String preview(String text, int chars) {
+		return text == null || text.length() <= chars ? text : text.substring(0, chars);
+	}
+
+	private static String inflate(byte[] blob, int length, int chars) {
+		Inflater inflater = new Inflater();
+		inflater.setInput(blob, HEADER, blob.length - HEADER);
+		byte[] raw = new byte[length];
+		int read = 0;
+		try{
+			while(read < length && !inflater.finished()){
+				int n = inflater.inflate(raw, read, length - read);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				read += n;
+			}
+			String text = new String(raw, 0, read, UTF8);
+			return chars < 0 ? text : preview(text, chars);
+		}catch(DataFormatException e){
+			throw new IllegalStateException("corrupt compressed column", e);
+		}catch(UnsupportedEncodingException e){
+			throw new IllegalStateException(e);
+		}finally{
+			inflater.end();
+		}
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+				| ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+	}
+}
@@ -0,0 +1,306 @@
+package io.trigger.forge.android.modules.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+//In-memory prefix index over the entity tables (hashtags, attags), ranked by how many
+//notes use each one. Every node keeps its TOP most used words, so a completion is a
+//walk down the prefix and a copy, no matter how many tags there are.
+//Kept current by looking at the writes that go through NotesDatabase: inserts add,
+//deletes look up what they're about to remove first, anything else makes it rebuild.
+class EntityIndex {
+	static final int TOP = 10;
+
+	private static final Pattern INSERT = Pattern.compile(
+			"^\\s*insert\\s+(?:or\\s+\\w+\\s+)?into\\s+(\\w+)\\s*\\(([^)]*)\\)\\s*values\\s*\\((.*)\\)\\s*;?\\s*$",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern DELETE = Pattern.compile(
+			"^\\s*delete\\s+from\\s+(\\w+)(.*?);?\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern TABLE = Pattern.compile(
+			"^\\s*(?:update|insert\\s+(?:or\\s+\\w+\\s+)?into|delete\\s+from|drop\\s+table(?:\\s+if\\s+exists)?)\\s+(\\w+)",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Comparator<Node> BY_COUNT = new Comparator<Node>(){
+		@Override
+		public int compare(Node a, Node b) {
+			return a.count != b.count ? (b.count < a.count ? -1 : 1) : a.word.compareTo(b.word);
+		}
+	};
+
+	private static class Node {
+		final Map<Character, Node> children = new HashMap<Character, Node>();
+		String word;//set on the node a word ends at
+		int count;
+		List<Node> top = new ArrayList<Node>(TOP);//most used words at or below here
+		boolean dirty;//top may be missing something since a count went down
+	}
+
+	//which column of which table feeds which kind of completion
+	private final Map<String, String> tracked = new HashMap<String, String>();//lowercase table -> column
+	private final Map<String, Node> roots = new HashMap<String, Node>();//kind (column) -> trie
+	private boolean built = false;
+
+	//A parsed write against one of the tracked tables
+	static class Statement {
+		final String table, column;
+		final boolean insert, delete;
+		final String literal;//the value when it's written into the sql instead of bound
+		final int argIndex;//otherwise which ? it's bound to
+		final String rest;//a delete's where clause
+		Statement(String table, String column, boolean insert, boolean delete, String literal, int argIndex, String rest) {
+			this.table = table;
+			this.column = column;
+			this.insert = insert;
+			this.delete = delete;
+			this.literal = literal;
+			this.argIndex = argIndex;
+			this.rest = rest;
+		}
+	}
+
+	//word deltas for one write, only applied once it's actually committed
+	static class Changes {
+		private final List<Object[]> deltas = new ArrayList<Object[]>();//{kind, word, delta}
+		private boolean rebuild = false;
+		void add(String kind, String word, int delta) {
+			if(word != null) deltas.add(new Object[]{kind, word, delta});
+		}
+	}
+
+	synchronized void track(String table, String column) {
+		tracked.put(table.toLowerCase(), column);
+		if(!roots.containsKey(column))
+			roots.put(column, new Node());
+	}
+
+	//null when the sql doesn't write a tracked table
+	Statement parse(String sql) {
+		Matcher table = TABLE.matcher(sql);
+		if(!table.find())
+			return null;
+		String name = table.group(1);
+		String column = tracked.get(name.toLowerCase());
+		if(column == null)
+			return null;
+
+		Matcher insert = INSERT.matcher(sql);
+		if(insert.matches()){
+			String[] columns = insert.group(2).split(",");
+			List<String> values = splitValues(insert.group(3));
+			if(values != null && values.size() == columns.length){
+				int params = 0;
+				for(int i = 0; i < columns.length; i++){
+					String value = values.get(i).trim();
+					if(columns[i].trim().equalsIgnoreCase(column)){
+						return value.equals("?") ? new Statement(name, column, true, false, null, params, null)
+								: new Statement(name, column, true, false, unquote(value), -1, null);
+					}
+					if(value.equals("?")) params++;
+				}
+			}
+		}
+		Matcher delete = DELETE.matcher(sql);
+		if(delete.matches())
+			return new Statement(name, column, false, true, null, -1, delete.group(2));
+		return new Statement(name, column, false, false, null, -1, null);//can't tell, rebuild
+	}
+
+	//Has to run before the statement does, a delete needs to see what it's about to remove
+	void before(SQLiteDatabase db, Statement statement, String[] args, Changes changes) {
+		if(statement == null)
+			return;
+		if(statement.delete){
+			Cursor c = db.rawQuery("select " + statement.column + " from " + statement.table + statement.rest, args);
+			try{
+				for(c.moveToFirst(); !c.isAfterLast(); c.moveToNext())
+					changes.add(statement.column, c.getString(0), -1);
+			}finally{
+				c.close();
+			}
+		}else if(statement.insert){
+			changes.add(statement.column, statement.argIndex < 0 ? statement.literal
+					: args != null && statement.argIndex < args.length ? args[statement.argIndex] : null, 1);
+		}else{
+			changes.rebuild = true;
+		}
+	}
+
+	synchronized void apply(Changes changes) {
+		if(changes.rebuild){
+			built = false;
+			return;
+		}
+		if(!built)
+			return;//whatever rebuilds it will see these
+		for(Object[] delta : changes.deltas)
+			add((String) delta[0], (String) delta[1], (Integer) delta[2]);
+	}
+
+	synchronized void invalidate() {
+		built = false;
+	}
+
+	synchronized void build(SQLiteDatabase db) {
+		for(Map.Entry<String, String> entry : tracked.entrySet()){
+			String column = entry.getValue();
+			roots.put(column, new Node());
+			Cursor c;
+			try{
+				c = db.rawQuery("select " + column + ", count(*) from " + entry.getKey() + " group by " + column, null);
+			}catch(SQLException e){
+				continue;//table isn't there yet
+			}
+			try{
+				for(c.moveToFirst(); !c.isAfterLast(); c.moveToNext())
+					add(column, c.getString(0), c.getInt(1));
+			}finally{
+				c.close();
+			}
+		}
+		built = true;
+		Log.e("entity index", "built");
+	}
+
+	synchronized boolean isBuilt() {
+		return built;
+	}
+
+	//[{name, count}], same shape Entities.get gives back
+	synchronized JsonArray complete(String prefix, String kind, int limit) {
+		JsonArray results = new JsonArray();
+		Node node = roots.get(kind);
+		String key = normalize(prefix);
+		for(int i = 0; node != null && i < key.length(); i++)
+			node = node.children.get(key.charAt(i));
+		if(node == null || limit <= 0)
+			return results;
+
+		List<Node> matches;
+		if(limit <= TOP){
+			if(node.dirty){
+				node.top = collect(node, TOP);
+				node.dirty = false;
+			}
+			matches = node.top;
+		}else{
+			matches = collect(node, limit);
+		}
+		for(int i = 0; i < matches.size() && i < limit; i++){
+			JsonObject match = new JsonObject();
+			match.addProperty("name", matches.get(i).word);
+			match.addProperty("count", matches.get(i).count);
+			results.add(match);
+		}
+		return results;
+	}
+
+	private void add(String kind, String word, int delta) {
+		if(word == null)
+			return;
+		Node root = roots.get(kind);
+		if(root == null)
+			return;
+		String key = normalize(word);
+		List<Node> path = new ArrayList<Node>(key.length() + 1);
+		Node node = root;
+		path.add(node);
+		for(int i = 0; i < key.length(); i++){
+			Node child = node.children.get(key.charAt(i));
+			if(child == null){
+				if(delta < 0) return;//never heard of it
+				node.children.put(key.charAt(i), child = new Node());
+			}
+			path.add(node = child);
+		}
+		Node end = node;
+		if(end.word == null)
+			end.word = word.toLowerCase();
+		end.count = Math.max(0, end.count + delta);
+
+		for(Node step : path){
+			boolean present = step.top.remove(end);
+			if(delta < 0){
+				//something outside the top might outrank it now, work that out when it's asked for
+				if(present) step.dirty = true;
+				if(present && end.count > 0) insert(step.top, end);
+			}else if(end.count > 0){
+				insert(step.top, end);
+				if(step.top.size() > TOP) step.top.remove(TOP);
+			}
+		}
+	}
+
+	private static void insert(List<Node> top, Node node) {
+		int at = Collections.binarySearch(top, node, BY_COUNT);
+		top.add(at < 0 ? -at - 1 : at, node);
+	}
+
+	private static List<Node> collect(Node from, int limit) {
+		PriorityQueue<Node> best = new PriorityQueue<Node>(limit + 1, Collections.reverseOrder(BY_COUNT));
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(from);
+		while(!stack.isEmpty()){
+			Node node = stack.remove(stack.size() - 1);
+			if(node.word != null && node.count > 0){
+				best.add(node);
+				if(best.size() > limit) best.poll();
+			}
+			stack.addAll(node.children.values());
+		}
+		List<Node> results = new ArrayList<Node>(best);
+		Collections.sort(results, BY_COUNT);
+		return results;
+	}
+
+	//"#Gold" and "gold" both complete to #gold
+	private static String normalize(String word) {
+		word = word.toLowerCase();
+		return word.startsWith("#") || word.startsWith("@") ? word.substring(1) : word;
+	}
+
+	private static String unquote(String value) {
+		if(value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'')
+				&& value.charAt(value.length() - 1) == value.charAt(0))
+			return value.substring(1, value.length() - 1);
+		return value;
+	}
+
+	//splits a values list on commas outside quotes, null if there's more than one row in it
+	private static List<String> splitValues(String values) {
+		List<String> results = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		char quote = 0;
+		for(int i = 0; i < values.length(); i++){
+			char c = values.charAt(i);
+			if(quote != 0){
+				if(c == quote) quote = 0;
+			}else if(c == '"' || c == '\''){
+				quote = c;
+			}else if(c == ','){
+				results.add(current.toString());
+				current.setLength(0);
+				continue;
+			}else if(c == '(' || c == ')'){
+				return null;
+			}
+			current.append(c);
+		}
+		results.add(current.toString());
+		return results;
+	}
+}
@@ -0,0 +1,16 @@
+package io.trigger.forge.android.modules.database;
+
+import io.trigger.forge.android.core.ForgeEventListener;
+
+public class EventListener extends ForgeEventListener {
+	//the process can be killed any time after this, get write-behind edits into the database
+	@Override
+	public void onStop() {
+		API.flushSoon();
+	}
+
+	@Override
+	public void onDestroy() {
+		API.flushSoon();
+	}
+}
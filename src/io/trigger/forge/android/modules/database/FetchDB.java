@@ -1,10 +1,14 @@
 package io.trigger.forge.android.modules.database;
 
+import com.google.gson.JsonObject;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import io.trigger.forge.android.modules.recorder.DiskGuard;
+
 public abstract class FetchDB extends SQLiteOpenHelper {
  
 	protected  SQLiteDatabase db;// = getReadableDatabase();//Apparently, read-only can also be written to
@@ -13,13 +17,69 @@ public abstract class FetchDB extends SQLiteOpenHelper {
 	
 	public final static int VERSION = 1;
 	
+	private final Context context;
+	private final String name;
+	
+	protected volatile StorageProfile profile;//kept until the file grows or shrinks a lot, see StorageProfile.choose
+	protected final StorageProfile.Timings timings = new StorageProfile.Timings();
+	
 	public FetchDB(Context context, String name) {
 		super(context, name, null, VERSION);
-		
+		this.context = context;
+		this.name = name;
 	}
 
+	//open to close on the UI or bridge thread, see DiskGuard.enter
+	private final ThreadLocal<Long> guarded = new ThreadLocal<Long>();
+	
 	protected synchronized void open(){
-		db = getReadableDatabase();//Hopefully, this is created and is not null;
+		long began = DiskGuard.enter();
+		try{
+			db = getReadableDatabase();//Hopefully, this is created and is not null;
+		}catch(RuntimeException e){
+			DiskGuard.exit("database", began);//there won't be a close to do it
+			throw e;
+		}
+		if(began != 0)
+			guarded.set(began);
+	}
+	
+	@Override
+	public synchronized void close(){
+		try{
+			super.close();
+		}finally{
+			Long began = guarded.get();
+			if(began != null){
+				guarded.remove();
+				DiskGuard.exit("database", began);
+			}
+		}
+	}
+	
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		long start = System.nanoTime();
+		StorageProfile chosen = StorageProfile.choose(context, context.getDatabasePath(name), profile);
+		chosen.apply(db);
+		profile = chosen;
+		timings.record("open", System.nanoTime() - start);
+	}
+	
+	//per call override of the profile's synchronous level, see StorageProfile
+	protected void setDurability(String level){
+		if(level != null && level.length() > 0)
+			profile.setDurability(db, level);
+	}
+	
+	protected void restoreDurability(){
+		profile.restoreDurability(db);
+	}
+	
+	public JsonObject diagnostics(){
+		JsonObject result = profile == null ? new JsonObject() : profile.toJson();
+		result.add("measured", timings.toJson());
+		return result;
 	}
 	
 	
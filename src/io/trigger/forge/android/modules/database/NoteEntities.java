@@ -0,0 +1,44 @@
+package io.trigger.forge.android.modules.database;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//Java side of Fetch.findEntities in fetchnotes.js, for writes that never go through JS.
+//Keep the patterns in step with Fetch.regexp.
+public class NoteEntities {
+	private static final Pattern TAGS = Pattern.compile("#\\w+"),
+			CONTACTS = Pattern.compile("@\\w+"),
+			URLS = Pattern.compile("(\\b(https?|ftp|file)://[-A-Z0-9+&@#/%?=~_|!:,.;]*[-A-Z0-9+&@#/%=~_|])", Pattern.CASE_INSENSITIVE),
+			EMAILS = Pattern.compile("([a-zA-Z0-9._-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,4})", Pattern.CASE_INSENSITIVE);
+
+	//entity column -> the table it lives in, same as Database.prototype.TABLE_NAMES
+	public static final Map<String, String> TABLES = new LinkedHashMap<String, String>();
+	static {
+		TABLES.put("hashtags", "NoteTag");
+		TABLES.put("attags", "NoteContact");
+		TABLES.put("emails", "NoteEmail");
+		TABLES.put("urls", "NoteURL");
+	}
+
+	//entity column -> what's in the text, lowercased like _buildNoteEntityQueries does
+	public static Map<String, List<String>> find(String text) {
+		Map<String, List<String>> entities = new LinkedHashMap<String, List<String>>();
+		if(text == null) text = "";
+		entities.put("hashtags", matches(TAGS, URLS.matcher(text).replaceAll("")));
+		entities.put("attags", matches(CONTACTS, EMAILS.matcher(text).replaceAll("")));
+		entities.put("emails", matches(EMAILS, text));
+		entities.put("urls", matches(URLS, text));
+		return entities;
+	}
+
+	private static List<String> matches(Pattern pattern, String text) {
+		List<String> results = new ArrayList<String>();
+		Matcher m = pattern.matcher(text);
+		while(m.find()) results.add(m.group().toLowerCase());
+		return results;
+	}
+}
@@ -1,5 +1,16 @@
 package io.trigger.forge.android.modules.database;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -10,6 +21,7 @@ import android.database.Cursor;
 import android.database.CursorIndexOutOfBoundsException;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 
@@ -59,6 +71,8 @@ public class NotesDatabase extends FetchDB{
 
 	//In all likelihood, none of this^ shit is needed
 	
+	private static final Set<String> NO_PREVIEWS = Collections.emptySet();
+	
 	private static String[] CREATE_TABLE_QUERIES = null;
 	private static String[] TABLE_NAMES = null;
 	
@@ -74,8 +88,24 @@ public class NotesDatabase extends FetchDB{
 		}
 	}
 	
+	//hashtag/contact completion, see EntityIndex
+	final EntityIndex entities = new EntityIndex();
+	
+	//editNote's overlay, every row a read builds gets its edits patched in, see WriteBehind
+	volatile WriteBehind behind;
+	
+	//queryPage's prefetched pages, thrown away by any write to this database
+	final PageCache pages = new PageCache();
+	
 	public NotesDatabase(Context context) {
-		super(context,"Main");
+		this(context, "Main");
+	}
+	
+	//a database of the same shape under another name, see Benchmark
+	NotesDatabase(Context context, String name) {
+		super(context, name);
+		entities.track("NoteTag", "hashtags");
+		entities.track("NoteContact", "attags");
 		Log.e("woot woot","called constructor!");
 		open();//won't be created until we do this!
 		close();
@@ -86,29 +116,46 @@ public class NotesDatabase extends FetchDB{
 		create_tables(db);
 	}
 	
-	public void createTables(JsonArray schema) throws SQLException{
+	public synchronized void createTables(JsonArray schema) throws SQLException{
 		open();
-		Log.e("create tables","non-fresh create tables called");
-		for(int i = 0; i < schema.size(); i++){
-			JsonObject table = schema.get(i).getAsJsonObject();
-			db.execSQL("create table if not exists "+table.get("name").getAsString()+
-					' '+table.get("schema").getAsString());
+		try{
+			Log.e("create tables","non-fresh create tables called");
+			for(int i = 0; i < schema.size(); i++){
+				JsonObject table = schema.get(i).getAsJsonObject();
+				db.execSQL("create table if not exists "+table.get("name").getAsString()+
+						' '+table.get("schema").getAsString());
+			}
+			Summaries.install(db);
+			entities.build(db);
+		}finally{
+			close();
 		}
-		close();
 	}
 
 	private void create_tables(SQLiteDatabase db){
 		Log.e("create tables","create tables called");
-		for(String name : CREATE_TABLE_QUERIES) db.execSQL(name+';');
+		if(CREATE_TABLE_QUERIES != null)//not until JS has sent a schema, createTables makes them then
+			for(String name : CREATE_TABLE_QUERIES) db.execSQL(name+';');
 		this.db = db;
 	}
 
 
 
-	public  void dropTables(JsonArray tables) throws SQLException {
+	public synchronized void dropTables(JsonArray tables) throws SQLException {
 		open();
-		for(String name:toArray(tables))db.execSQL("drop table "+name+';');
-		close();
+		try{
+			String[] names = toArray(tables);
+			for(String name : names){
+				if(name.equals("Notes") || NoteEntities.TABLES.containsValue(name)){
+					Summaries.uninstall(db);//createTables puts it back
+					break;
+				}
+			}
+			for(String name:names)db.execSQL("drop table "+name+';');
+		}finally{
+			entities.invalidate();
+			close();
+		}
 	}
 
 	
@@ -124,13 +171,84 @@ public class NotesDatabase extends FetchDB{
 	
 	//Takes a string, returns a JSONArray of JSONObjects
 	public synchronized JsonArray queryToObjects(String query, boolean atomic) {
+		return queryToObjects(query, atomic, NO_PREVIEWS, -1);
+	}
+	
+	//previewColumns come back cut down to previewLength chars
+	public synchronized JsonArray queryToObjects(String query, boolean atomic, Set<String> previewColumns, int previewLength) {
+		return queryToObjects(query, null, atomic, previewColumns, previewLength);
+	}
+	
+	//args fill in the query's ?s
+	public synchronized JsonArray queryToObjects(String query, JsonArray args, boolean atomic) {
+		return queryToObjects(query, args == null ? null : toArgStrings(args), atomic, NO_PREVIEWS, -1);
+	}
+	
+	private JsonArray queryToObjects(String query, String[] args, boolean atomic, Set<String> previewColumns, int previewLength) {
+		Map<Long, WriteBehind.Edit> overlay = overlay();
 		if(atomic) open();
-		Cursor c = db.rawQuery(query, null);//the actual querying happens
-		Log.e("Cursor length: ",""+c.getCount());
-		JsonArray notes = cursorToArray(c);
-		c.close();
-		if(atomic) close();
-		return notes;
+		try{
+			Cursor c = db.rawQuery(query, args);//the actual querying happens
+			try{
+				Log.e("Cursor length: ",""+c.getCount());
+				return cursorToArray(c, previewColumns, previewLength, overlay);
+			}finally{
+				c.close();
+			}
+		}finally{
+			if(atomic) close();
+		}
+	}
+	
+	//Same as queryToObjects, but once the rows it's holding come to more than about `budget`
+	//bytes they're written out to a Spill instead, and what comes back is its handle
+	public synchronized JsonElement queryWithBudget(String query, boolean atomic, Set<String> previewColumns, int previewLength, long budget) throws IOException {
+		Map<Long, WriteBehind.Edit> overlay = overlay();
+		if(atomic) open();
+		JsonArray rows = new JsonArray();
+		Spill spill = null;
+		long held = 0, peak = 0, count = 0;
+		boolean done = false;
+		try{
+			Cursor c = db.rawQuery(query, null);
+			try{
+				final String[] columnNames = c.getColumnNames();
+				for(c.moveToFirst();!c.isAfterLast();c.moveToNext()){
+					JsonObject row = row(c, columnNames, previewColumns, previewLength, overlay);
+					long size = Spill.OBJECT;
+					for(Map.Entry<String, JsonElement> entry : row.entrySet())
+						size += Spill.size(entry.getKey(), entry.getValue().isJsonNull() ? null : entry.getValue().getAsJsonPrimitive());
+					count++;
+					if(spill != null){
+						spill.write(row);
+						peak = Math.max(peak, size);
+						continue;
+					}
+					rows.add(row);
+					held += size;
+					peak = Math.max(peak, held);
+					if(held > budget){
+						spill = Spill.create();
+						for(JsonElement earlier : rows) spill.write(earlier);
+						rows = new JsonArray();
+						held = 0;
+					}
+				}
+			}finally{
+				c.close();
+			}
+			Spill.record(query, count, peak, spill != null);
+			JsonElement result = spill == null ? rows : spill.finish(peak);
+			done = true;
+			return result;
+		}finally{
+			if(!done && spill != null) spill.discard();//whatever went wrong, nobody's getting the handle
+			if(atomic) close();
+		}
+	}
+	
+	public synchronized JsonElement queryWithBudget(String query, boolean atomic, long budget) throws IOException {
+		return queryWithBudget(query, atomic, NO_PREVIEWS, -1, budget);
 	}
 	
 	private String[] toArray(JsonArray tables) {
@@ -139,9 +257,29 @@ public class NotesDatabase extends FetchDB{
 		return results;
 		
 	}
+	
+	private String[] toArgStrings(JsonArray args) {
+		String[] results = new String[args.size()];
+		for(int i = 0; i < results.length; i++) results[i] = args.get(i).isJsonNull() ? null : args.get(i).getAsString();
+		return results;
+	}
+	
+	private Object[] toPackedArray(JsonArray args) {
+		Object[] results = new Object[args.size()];
+		for(int i = 0; i < results.length; i++) results[i] = args.get(i).isJsonNull() ? null : Compression.pack(args.get(i).getAsString());
+		return results;
+	}
 
 	public synchronized int writeQuery(String query, JsonArray args) throws SQLException {
-		db.execSQL(query,toArray(args));
+		return writeQuery(query, args, false);
+	}
+	
+	//compress: big string args get stored packed, see Compression
+	public synchronized int writeQuery(String query, JsonArray args, boolean compress) throws SQLException {
+		EntityIndex.Changes changes = new EntityIndex.Changes();
+		entities.before(db, entities.parse(query), toArgStrings(args), changes);
+		db.execSQL(query,compress ? toPackedArray(args) : toArgStrings(args));
+		entities.apply(changes);
 		
 		String column= "last_insert_rowid()";
 		
@@ -160,6 +298,68 @@ public class NotesDatabase extends FetchDB{
 		return result;
 	}
 	
+	//One compiled statement, executed once per row of args, all in one transaction.
+	//Returns the rowid of each insert, or the number of rows changed for anything else
+	public synchronized JsonArray writeBatch(String query, JsonArray rows) throws SQLException {
+		return writeBatch(query, rows, false);
+	}
+	
+	public synchronized JsonArray writeBatch(String query, JsonArray rows, boolean compress) throws SQLException {
+		JsonArray results = new JsonArray();
+		boolean insert = query.trim().toLowerCase().startsWith("insert");
+		EntityIndex.Statement entity = entities.parse(query);
+		EntityIndex.Changes changes = new EntityIndex.Changes();
+		SQLiteStatement statement = db.compileStatement(query);
+		db.beginTransaction();
+		try{
+			for(int i = 0; i < rows.size(); i++){
+				JsonArray args = rows.get(i).getAsJsonArray();
+				if(entity != null) entities.before(db, entity, toArgStrings(args), changes);
+				bind(statement, args, compress);
+				long result = insert ? statement.executeInsert() : executeUpdate(statement);
+				results.add(new JsonPrimitive(result));
+			}
+			db.setTransactionSuccessful();
+		}finally{
+			db.endTransaction();
+			statement.close();
+		}
+		entities.apply(changes);
+		return results;
+	}
+	
+	private void bind(SQLiteStatement statement, JsonArray args, boolean compress) {
+		statement.clearBindings();
+		for(int i = 0; i < args.size(); i++){
+			JsonElement arg = args.get(i);
+			if(arg.isJsonNull()){
+				statement.bindNull(i + 1);
+			}else if(arg.getAsJsonPrimitive().isNumber()){
+				double number = arg.getAsDouble();
+				if(number == Math.rint(number))
+					statement.bindLong(i + 1, arg.getAsLong());
+				else
+					statement.bindDouble(i + 1, number);
+			}else{
+				Object value = compress ? Compression.pack(arg.getAsString()) : arg.getAsString();
+				if(value instanceof byte[])
+					statement.bindBlob(i + 1, (byte[]) value);
+				else
+					statement.bindString(i + 1, (String) value);
+			}
+		}
+	}
+	
+	@SuppressLint("NewApi")
+	private long executeUpdate(SQLiteStatement statement) {
+		try{
+			return statement.executeUpdateDelete();
+		}catch(java.lang.NoSuchMethodError e){
+			statement.execute();//pre-honeycomb can't tell us how many rows changed
+			return -1;
+		}
+	}
+	
 	@SuppressLint("NewApi")
 	private JsonPrimitive postHoneyComb(Cursor c, int index) {
 		switch(c.getType(index)){
@@ -169,6 +369,8 @@ public class NotesDatabase extends FetchDB{
 				return new JsonPrimitive(c.getInt(index));
 			case Cursor.FIELD_TYPE_STRING:
 				return new JsonPrimitive(c.getString(index));
+			case Cursor.FIELD_TYPE_BLOB:
+				return unpack(c.getBlob(index), -1);
 			case Cursor.FIELD_TYPE_NULL:
 			default:
 				return null;
@@ -183,14 +385,221 @@ public class NotesDatabase extends FetchDB{
 			System.out.println("trying getString");
 			result = new JsonPrimitive(c.getString(index));
 		}catch(Exception e){
-			System.out.println("trying getInt");
-			result =  new JsonPrimitive(c.getInt(index));
+			try{
+				result = unpack(c.getBlob(index), -1);
+			}catch(Exception notBlob){
+				System.out.println("trying getInt");
+				result =  new JsonPrimitive(c.getInt(index));
+			}
 		}
 		System.out.println("returning "+result);
 		return result;
 			
 	}
 	
+	//Server-side notes straight into the store, the same writes _buildCUDMethod and the entity
+	//queries would make from JS, all in one transaction.
+	//notes: [{id (or _id), text, timestamp, delete}]. Returns how many were applied
+	public synchronized int applyDeltas(JsonArray notes) throws SQLException {
+		int applied = 0;
+		open();
+		db.beginTransaction();
+		boolean ok = false;
+		try{
+			for(int i = 0; i < notes.size(); i++){
+				JsonObject note = notes.get(i).getAsJsonObject();
+				String id = string(note, "id", string(note, "_id", null));
+				if(id == null) continue;
+				String text = string(note, "text", "");
+				String timestamp = string(note, "timestamp", "");
+				boolean delete = note.has("delete") && !note.get("delete").isJsonNull() && note.get("delete").getAsBoolean();
+
+				Long localID = localID(id);
+				if(localID != null){
+					for(String table : NoteEntities.TABLES.values())
+						writeQuery("delete from " + table + " where localID=?", args(localID));
+					if(delete){
+						writeQuery("delete from Notes where localID=?", args(localID));
+						applied++;
+						continue;
+					}
+					writeQuery("update Notes set text=?, timestamp=?, status='synced' where localID=?", args(text, timestamp, localID));
+				}else if(delete){
+					continue;//never had it
+				}else{
+					localID = (long) writeQuery("insert into Notes (text, id, timestamp, status) values (?,?,?,'synced')", args(text, id, timestamp));
+				}
+				insertEntities(localID, text);
+				applied++;
+			}
+			db.setTransactionSuccessful();
+			ok = true;
+		}finally{
+			db.endTransaction();
+			if(!ok) entities.invalidate();//it heard about writes that got rolled back
+			close();
+		}
+		return applied;
+	}
+	
+	private void insertEntities(long localID, String text) {
+		for(Map.Entry<String, List<String>> found : NoteEntities.find(text).entrySet()){
+			if(found.getValue().isEmpty()) continue;
+			JsonArray rows = new JsonArray();
+			for(String entity : found.getValue()) rows.add(args(localID, entity));
+			writeBatch("insert into " + NoteEntities.TABLES.get(found.getKey()) + " (localID , " + found.getKey() + ") values (?,?)", rows);
+		}
+	}
+	
+	//Edits WriteBehind held on to, each note's fields and then its entity rows, all in one transaction.
+	//Compiled once per flush rather than a writeQuery each, and the entity index only hears about
+	//it once it's committed
+	public synchronized void applyEdits(Collection<WriteBehind.Edit> edits) throws SQLException {
+		open();
+		EntityIndex.Changes changes = new EntityIndex.Changes();
+		List<SQLiteStatement> statements = new ArrayList<SQLiteStatement>();
+		db.beginTransaction();
+		boolean ok = false;
+		try{
+			SQLiteStatement update = db.compileStatement("update Notes set text=?, timestamp=coalesce(?, timestamp),"
+					+ " status=coalesce(?, status) where localID=?");
+			statements.add(update);
+			Map<String, SQLiteStatement> deletes = new LinkedHashMap<String, SQLiteStatement>(), inserts = new LinkedHashMap<String, SQLiteStatement>();
+			Map<String, EntityIndex.Statement> deleted = new HashMap<String, EntityIndex.Statement>(), inserted = new HashMap<String, EntityIndex.Statement>();
+			for(Map.Entry<String, String> table : NoteEntities.TABLES.entrySet()){
+				String delete = "delete from " + table.getValue() + " where localID=?",
+						insert = "insert into " + table.getValue() + " (localID , " + table.getKey() + ") values (?,?)";
+				deletes.put(table.getKey(), db.compileStatement(delete));
+				statements.add(deletes.get(table.getKey()));
+				inserts.put(table.getKey(), db.compileStatement(insert));
+				statements.add(inserts.get(table.getKey()));
+				deleted.put(table.getKey(), entities.parse(delete));
+				inserted.put(table.getKey(), entities.parse(insert));
+			}
+			for(WriteBehind.Edit edit : edits){
+				String id = String.valueOf(edit.localID);
+				update.clearBindings();
+				update.bindString(1, edit.text);
+				if(edit.timestamp != null) update.bindString(2, edit.timestamp); else update.bindNull(2);
+				if(edit.status != null) update.bindString(3, edit.status); else update.bindNull(3);
+				update.bindLong(4, edit.localID);
+				update.execute();
+				for(Map.Entry<String, List<String>> found : NoteEntities.find(edit.text).entrySet()){
+					String column = found.getKey();
+					entities.before(db, deleted.get(column), new String[]{id}, changes);
+					SQLiteStatement delete = deletes.get(column), insert = inserts.get(column);
+					delete.bindLong(1, edit.localID);
+					delete.execute();
+					for(String entity : found.getValue()){
+						entities.before(db, inserted.get(column), new String[]{id, entity}, changes);
+						insert.bindLong(1, edit.localID);
+						insert.bindString(2, entity);
+						insert.executeInsert();
+					}
+				}
+			}
+			db.setTransactionSuccessful();
+			ok = true;
+		}finally{
+			db.endTransaction();
+			for(SQLiteStatement statement : statements) statement.close();
+			if(ok) entities.apply(changes);
+			close();
+		}
+	}
+	
+	private Long localID(String id) {
+		Cursor c = db.rawQuery("select localID from Notes where id=?", new String[]{id});
+		try{
+			return c.moveToFirst() ? c.getLong(0) : null;
+		}finally{
+			c.close();
+		}
+	}
+	
+	private static String string(JsonObject object, String name, String fallback) {
+		JsonElement value = object.get(name);
+		return value == null || value.isJsonNull() ? fallback : value.getAsString();
+	}
+	
+	//one row of bind args, numbers as numbers and anything else as its string. Benchmark and
+	//StressTest build theirs with it too
+	static JsonArray args(Object... values) {
+		JsonArray args = new JsonArray();
+		for(Object value : values)
+			args.add(value instanceof JsonArray ? (JsonArray) value
+					: value instanceof Number ? new JsonPrimitive((Number) value) : new JsonPrimitive(String.valueOf(value)));
+		return args;
+	}
+	
+	//tables: in the order they're written, see Snapshot
+	public synchronized JsonObject exportTo(File file, List<String> tables, Snapshot.Progress progress) throws IOException {
+		open();
+		try{
+			return new Snapshot(db, progress).export(file, tables);
+		}finally{
+			close();
+		}
+	}
+	
+	public synchronized JsonObject importFrom(File file, Snapshot.Progress progress) throws IOException {
+		open();
+		Summaries.uninstall(db);//quicker to fill in again afterwards than to keep up row by row
+		try{
+			return new Snapshot(db, progress).restore(file);
+		}finally{
+			Summaries.install(db);
+			entities.invalidate();
+			close();
+		}
+	}
+	
+	//a page of NoteSummary rows, see Summaries
+	public synchronized JsonArray summaries(String where, int skip, int limit) {
+		Map<Long, WriteBehind.Edit> overlay = overlay();
+		open();
+		try{
+			return Summaries.page(db, where, skip, limit, overlay);
+		}finally{
+			close();
+		}
+	}
+	
+	//prefix is what's been typed so far, with or without the # or @
+	public synchronized JsonArray complete(String prefix, String kind, int limit) {
+		if(!entities.isBuilt()){
+			open();
+			try{
+				entities.build(db);
+			}finally{
+				close();
+			}
+		}
+		return entities.complete(prefix, kind, limit);
+	}
+	
+	private JsonPrimitive unpack(byte[] blob, int previewLength) {
+		if(!Compression.isPacked(blob))
+			return null;
+		return new JsonPrimitive(previewLength < 0 ? Compression.unpack(blob) : Compression.preview(blob, previewLength));
+	}
+	
+	//like get, but a packed value is only inflated as far as the preview needs
+	@SuppressLint("NewApi")
+	private JsonPrimitive getPreview(Cursor c, int index, int length) {
+		JsonPrimitive result = null;
+		try{
+			if(c.getType(index) == Cursor.FIELD_TYPE_BLOB)
+				return unpack(c.getBlob(index), length);
+			result = postHoneyComb(c, index);
+		}catch(java.lang.NoSuchMethodError e){
+			result = preHoneyComb(c, index);
+		}
+		if(result != null && result.isString())
+			result = new JsonPrimitive(Compression.preview(result.getAsString(), length));
+		return result;
+	}
+	
 	private JsonPrimitive get(Cursor c, int index) { 	
 		JsonPrimitive result = null;
 		System.out.println("oh shit a get");
@@ -202,23 +611,45 @@ public class NotesDatabase extends FetchDB{
 		return result;	
 	}
 	
-	private JsonArray cursorToArray(Cursor c) {
+	private JsonArray cursorToArray(Cursor c, Set<String> previewColumns, int previewLength, Map<Long, WriteBehind.Edit> overlay) {
 		final String[] columnNames = c.getColumnNames();
 		JsonArray results = new JsonArray();
 		
 		Log.e("cursor", "All the columns: "+columnNames.length);
 		
 		for (c.moveToFirst();!c.isAfterLast();c.moveToNext()){
-			JsonObject object = new JsonObject();
-			for(String name : columnNames){
-				int index = c.getColumnIndex(name);
-				object.add(name, get(c, index));
-			}
-			results.add(object);
+			results.add(row(c, columnNames, previewColumns, previewLength, overlay));
 		}
 		
 		return results;
 	}
+	
+	//the cursor's current row, shared by cursorToArray and queryWithBudget
+	private JsonObject row(Cursor c, String[] columnNames, Set<String> previewColumns, int previewLength, Map<Long, WriteBehind.Edit> overlay) {
+		JsonObject object = new JsonObject();
+		for(String name : columnNames){
+			int index = c.getColumnIndex(name);
+			object.add(name, previewColumns.contains(name) ? getPreview(c, index, previewLength) : get(c, index));
+		}
+		if(overlay != null) WriteBehind.patch(object, overlay, previewColumns, previewLength);
+		return object;
+	}
+	
+	//Taken as a read starts, under this lock, which a flush holds from its commit until it's
+	//cleared what it wrote out of the overlay
+	private Map<Long, WriteBehind.Edit> overlay() {
+		WriteBehind overlay = behind;
+		return overlay == null ? null : overlay.snapshot();
+	}
+	
+	//rows that were read earlier, PageCache's, patched with edits made since
+	public synchronized JsonArray patched(JsonArray rows) {
+		Map<Long, WriteBehind.Edit> overlay = overlay();
+		if(overlay != null)
+			for(JsonElement row : rows)
+				if(row.isJsonObject()) WriteBehind.patch(row.getAsJsonObject(), overlay, NO_PREVIEWS, -1);
+		return rows;
+	}
 
 }
 
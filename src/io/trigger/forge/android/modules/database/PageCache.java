@@ -0,0 +1,68 @@
+package io.trigger.forge.android.modules.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+
+//A few pages of notes.get results that were fetched ahead of the scroll position.
+//Any write throws all of it away, and a prefetch that was running while a write
+//happened doesn't get to store its (possibly stale) page.
+class PageCache {
+	private static final int MAX_PAGES = 4;
+
+	private final Map<String, JsonArray> pages = new LinkedHashMap<String, JsonArray>(MAX_PAGES, 0.75f, true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, JsonArray> eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+	private long generation = 0;
+	private int hits = 0, misses = 0;
+
+	static String key(String query, int skip, int limit) {
+		return query + '\u0000' + skip + ',' + limit;
+	}
+
+	static String pageQuery(String query, int skip, int limit) {
+		query = query.trim();
+		if(query.endsWith(";"))
+			query = query.substring(0, query.length() - 1);
+		return query + " limit " + skip + "," + limit;
+	}
+
+	synchronized JsonArray take(String key) {
+		JsonArray page = pages.remove(key);//only served once, the next prefetch replaces it
+		if(page == null) misses++; else hits++;
+		return page;
+	}
+
+	synchronized long generation() {
+		return generation;
+	}
+
+	//false if something was written since `generation` was read
+	synchronized boolean put(String key, JsonArray page, long generation) {
+		if(generation != this.generation)
+			return false;
+		pages.put(key, page);
+		return true;
+	}
+
+	synchronized boolean contains(String key) {
+		return pages.containsKey(key);
+	}
+
+	synchronized void invalidate() {
+		generation++;
+		pages.clear();
+	}
+
+	synchronized int hits() {
+		return hits;
+	}
+
+	synchronized int misses() {
+		return misses;
+	}
+}
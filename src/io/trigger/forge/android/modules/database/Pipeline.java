@@ -0,0 +1,121 @@
+package io.trigger.forge.android.modules.database;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import android.database.SQLException;
+
+//A run of reads and writes that would otherwise be a bridge round trip each, done back to back
+//in one DatabaseTask, with nothing else getting at the database in between. Steps are
+//	{read: "select ...", args: [...]}                  the rows
+//	{write: "insert ...", args: [...]}                 last_insert_rowid, like writeQuery
+//	{write: "insert ...", rows: [[...], ...]}          one result per row, like writeBatch
+//	{write: "insert ...", forEach: n, args: [...]}     writeBatch with a row per result of step n
+//and writes can have compress: true. Anywhere a value goes, it can refer back instead:
+//	{step: n}                       what step n came back with, i.e. the rowid of a single write
+//	{step: n, row: i, field: "x"}   field x of row i (default 0) of a read, or just row i of a batch
+//	{each: "x"}                     in forEach's args, field x of the row it's on ("." for the whole thing)
+//so creating a note with its tags is [{write: "insert into Notes ..."},
+//	{write: "insert into NoteTag (localID , hashtags) values (?,?)", rows: [[{step: 0}, "#a"], ...]}]
+class Pipeline {
+	private final NotesDatabase db;
+	private final JsonArray results = new JsonArray();
+
+	Pipeline(NotesDatabase db) {
+		this.db = db;
+	}
+
+	//transaction: all the steps or none of them. Otherwise a failed step leaves the ones before it done
+	JsonArray run(JsonArray steps, boolean transaction, String durability) throws SQLException {
+		synchronized(db){
+			db.open();
+			db.setDurability(durability);
+			if(transaction) db.db.beginTransaction();
+			boolean ok = false;
+			try{
+				for(int i = 0; i < steps.size(); i++){
+					try{
+						results.add(step(steps.get(i).getAsJsonObject()));
+					}catch(RuntimeException e){
+						SQLException failed = new SQLException("step " + i + ": " + e.getMessage());
+						failed.initCause(e);
+						throw failed;
+					}
+				}
+				if(transaction) db.db.setTransactionSuccessful();
+				ok = true;
+			}finally{
+				if(transaction) db.db.endTransaction();
+				if(!ok && transaction) db.entities.invalidate();//it heard about writes that got rolled back
+				db.restoreDurability();
+				db.close();
+			}
+		}
+		return results;
+	}
+
+	private JsonElement step(JsonObject step) {
+		boolean compress = step.has("compress") && step.get("compress").getAsBoolean();
+		if(step.has("read"))
+			return db.queryToObjects(step.get("read").getAsString(), step.has("args") ? values(step.get("args").getAsJsonArray(), null) : null, false);
+		String query = step.get("write").getAsString();
+		if(step.has("rows")){
+			JsonArray rows = new JsonArray();
+			for(JsonElement row : step.get("rows").getAsJsonArray())
+				rows.add(values(row.getAsJsonArray(), null));
+			return db.writeBatch(query, rows, compress);
+		}
+		JsonArray args = step.has("args") ? step.get("args").getAsJsonArray() : new JsonArray();
+		if(step.has("forEach")){
+			JsonArray rows = new JsonArray();
+			for(JsonElement each : earlier(step.get("forEach").getAsInt()).getAsJsonArray())
+				rows.add(values(args, each));
+			return rows.size() == 0 ? rows : db.writeBatch(query, rows, compress);
+		}
+		return new JsonPrimitive(db.writeQuery(query, values(args, null), compress));
+	}
+
+	private JsonArray values(JsonArray args, JsonElement each) {
+		JsonArray values = new JsonArray();
+		for(JsonElement arg : args)
+			values.add(arg.isJsonObject() ? resolve(arg.getAsJsonObject(), each) : arg);
+		return values;
+	}
+
+	private JsonElement resolve(JsonObject ref, JsonElement each) {
+		JsonElement value;
+		if(ref.has("each")){
+			if(each == null)
+				throw new IllegalArgumentException("{each} is only for forEach steps");
+			String field = ref.get("each").getAsString();
+			value = field.equals(".") ? each : each.getAsJsonObject().get(field);
+		}else if(ref.has("step")){
+			value = earlier(ref.get("step").getAsInt());
+			if(ref.has("row") || ref.has("field")){
+				JsonArray rows = value.getAsJsonArray();
+				int row = ref.has("row") ? ref.get("row").getAsInt() : 0;
+				if(row >= rows.size())
+					throw new IllegalArgumentException("step " + ref.get("step").getAsInt() + " has no row " + row);
+				value = rows.get(row);
+				if(ref.has("field"))
+					value = value.getAsJsonObject().get(ref.get("field").getAsString());
+			}
+		}else{
+			throw new IllegalArgumentException("not a reference: " + ref);
+		}
+		if(value == null || value.isJsonNull())
+			return JsonNull.INSTANCE;
+		if(!value.isJsonPrimitive())
+			throw new IllegalArgumentException(ref + " isn't a single value");
+		return value;
+	}
+
+	private JsonElement earlier(int step) {
+		if(step < 0 || step >= results.size())
+			throw new IllegalArgumentException("step " + step + " hasn't run yet");
+		return results.get(step);
+	}
+}
@@ -0,0 +1,366 @@
+package io.trigger.forge.android.modules.database;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.google.gson.JsonObject;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+//Streams tables to and from a file a chunk at a time, for backups, moving to a new device and
+//support dumps. Holds a page of rows and a chunk of bytes at most, however many notes there are.
+//The format, big endian:
+//	"FNSN", int version
+//	per table: 'T', string name, string create sql, short columns, string column...
+//	  then any number of 'C', int rows, int length, the rows, int crc32 of the rows
+//	  then 'E', long rows
+//	'Z', long rows, long crc32 of every chunk's rows in order
+//Strings are an int length and utf-8. Each value is a type byte and then
+//	0 null, 1 long, 2 double, 3 string, 4 blob (int length + bytes, so packed notes stay packed)
+class Snapshot {
+	static final int VERSION = 1;
+	static final int CHUNK = 64 * 1024;
+	private static final int PAGE = 1000;//rows per read
+	private static final byte[] MAGIC = {'F', 'N', 'S', 'N'};
+	private static final byte NULL = 0, LONG = 1, DOUBLE = 2, STRING = 3, BLOB = 4;
+	private static final String UTF8 = "UTF-8";
+
+	interface Progress {
+		//fraction: of the rows for an export, of the file for an import
+		void progress(String table, long rows, long bytes, double fraction);
+	}
+
+	private final SQLiteDatabase db;
+	private final Progress progress;
+	private final CRC32 checksum = new CRC32();
+	private final JsonObject tables = new JsonObject();
+	private long rows = 0, bytes = 0, expected = 1;
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+	private int chunkRows = 0;
+
+	Snapshot(SQLiteDatabase db, Progress progress) {
+		this.db = db;
+		this.progress = progress;
+	}
+
+	//Written to <file>.partial and renamed, so a failed export never leaves half a file behind
+	JsonObject export(File to, List<String> names) throws IOException {
+		File parent = to.getAbsoluteFile().getParentFile();
+		if(parent != null) parent.mkdirs();
+		File partial = new File(to.getPath() + ".partial");
+		FileOutputStream stream = new FileOutputStream(partial);
+		channel = stream.getChannel();
+		boolean done = false;
+		try{
+			ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4);
+			header.put(MAGIC).putInt(VERSION);
+			write(header);
+			db.beginTransaction();//writers wait, so it's all from one moment
+			try{
+				expected = 0;
+				for(String name : names) expected += count(name);
+				expected = Math.max(1, expected);
+				for(String name : names) exportTable(name);
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(1 + 8 + 8);
+			trailer.put((byte) 'Z').putLong(rows).putLong(checksum.getValue());
+			write(trailer);
+			channel.force(false);
+			done = true;
+		}finally{
+			stream.close();
+			if(!done) partial.delete();
+		}
+		to.delete();
+		if(!partial.renameTo(to))
+			throw new IOException("couldn't move " + partial + " to " + to);
+		return summary(to);
+	}
+
+	private long count(String name) {
+		if(createSql(name) == null) return 0;
+		Cursor c = db.rawQuery("select count(*) from " + name, null);
+		try{
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		}finally{
+			c.close();
+		}
+	}
+
+	private String createSql(String name) {
+		Cursor c = db.rawQuery("select sql from sqlite_master where type='table' and name=?", new String[]{name});
+		try{
+			return c.moveToFirst() ? c.getString(0) : null;
+		}finally{
+			c.close();
+		}
+	}
+
+	private void exportTable(String name) throws IOException {
+		String sql = createSql(name);
+		if(sql == null)
+			return;//JS never made it, nothing to save
+		Cursor c = db.rawQuery("select * from " + name + " limit 0", null);
+		String[] columns = c.getColumnNames();
+		c.close();
+
+		byte[][] strings = new byte[columns.length + 2][];
+		strings[0] = utf8(name);
+		strings[1] = utf8(sql);
+		int length = 1 + 2;
+		for(int i = 0; i < columns.length; i++) strings[i + 2] = utf8(columns[i]);
+		for(byte[] s : strings) length += 4 + s.length;
+		ByteBuffer header = ByteBuffer.allocate(length);
+		header.put((byte) 'T');
+		putString(header, strings[0]);
+		putString(header, strings[1]);
+		header.putShort((short) columns.length);
+		for(int i = 0; i < columns.length; i++) putString(header, strings[i + 2]);
+		write(header);
+
+		//typeof alongside every column, Cursor.getType is honeycomb and up
+		StringBuilder select = new StringBuilder("select rowid");
+		for(String column : columns) select.append(", typeof(").append(column).append("), ").append(column);
+		select.append(" from ").append(name).append(" where rowid > ");
+		long after = Long.MIN_VALUE, count = 0;
+		Object[] values = new Object[columns.length];
+		byte[] types = new byte[columns.length];
+		while(true){
+			c = db.rawQuery(select.toString() + after + " order by rowid limit " + PAGE, null);
+			int read = c.getCount();
+			try{
+				for(c.moveToFirst(); !c.isAfterLast(); c.moveToNext()){
+					after = c.getLong(0);
+					int size = 0;
+					for(int i = 0; i < columns.length; i++){
+						String type = c.getString(1 + 2 * i);
+						int index = 2 + 2 * i;
+						if(type.equals("integer")){
+							types[i] = LONG;
+							values[i] = c.getLong(index);
+							size += 1 + 8;
+						}else if(type.equals("real")){
+							types[i] = DOUBLE;
+							values[i] = c.getDouble(index);
+							size += 1 + 8;
+						}else if(type.equals("text")){
+							types[i] = STRING;
+							values[i] = utf8(c.getString(index));
+							size += 1 + 4 + ((byte[]) values[i]).length;
+						}else if(type.equals("blob")){
+							types[i] = BLOB;
+							values[i] = c.getBlob(index);
+							size += 1 + 4 + ((byte[]) values[i]).length;
+						}else{
+							types[i] = NULL;
+							values[i] = null;
+							size += 1;
+						}
+					}
+					if(buffer.remaining() < size) flushChunk(name);
+					if(buffer.capacity() < size) buffer = ByteBuffer.allocate(size);//one huge row, it gets a chunk to itself
+					for(int i = 0; i < columns.length; i++){
+						buffer.put(types[i]);
+						if(types[i] == LONG) buffer.putLong((Long) values[i]);
+						else if(types[i] == DOUBLE) buffer.putDouble((Double) values[i]);
+						else if(types[i] != NULL) putString(buffer, (byte[]) values[i]);
+					}
+					chunkRows++;
+					count++;
+				}
+			}finally{
+				c.close();
+			}
+			if(read < PAGE)
+				break;
+		}
+		flushChunk(name);
+		ByteBuffer end = ByteBuffer.allocate(1 + 8);
+		end.put((byte) 'E').putLong(count);
+		write(end);
+		tables.addProperty(name, count);
+	}
+
+	private void flushChunk(String table) throws IOException {
+		if(chunkRows == 0)
+			return;
+		buffer.flip();
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.limit());
+		checksum.update(buffer.array(), 0, buffer.limit());
+		ByteBuffer head = ByteBuffer.allocate(1 + 4 + 4), tail = ByteBuffer.allocate(4);
+		head.put((byte) 'C').putInt(chunkRows).putInt(buffer.limit());
+		tail.putInt((int) crc.getValue());
+		head.flip();
+		tail.flip();
+		ByteBuffer[] parts = {head, buffer, tail};
+		long length = head.remaining() + buffer.remaining() + tail.remaining();
+		for(long written = 0; written < length; )
+			written += channel.write(parts);
+		bytes += length;
+		rows += chunkRows;
+		chunkRows = 0;
+		buffer.clear();
+		if(buffer.capacity() > CHUNK) buffer = ByteBuffer.allocate(CHUNK);
+		progress.progress(table, rows, bytes, (double) rows / expected);
+	}
+
+	private void write(ByteBuffer b) throws IOException {
+		b.flip();
+		bytes += b.remaining();
+		while(b.hasRemaining()) channel.write(b);
+	}
+
+	//Replaces the tables in the file with what it holds, creating them if need be, all in one
+	//transaction that only commits once every chunk and the whole file's checksum are right
+	JsonObject restore(File from) throws IOException {
+		FileInputStream stream = new FileInputStream(from);
+		channel = stream.getChannel();
+		try{
+			expected = Math.max(1, channel.size());
+			ByteBuffer header = read(MAGIC.length + 4);
+			for(byte b : MAGIC)
+				if(header.get() != b) throw new IOException(from + " isn't a notes snapshot");
+			int version = header.getInt();
+			if(version > VERSION)
+				throw new IOException("snapshot version " + version + " is newer than this app");
+			db.beginTransaction();
+			try{
+				byte tag;
+				while((tag = read(1).get()) == 'T')
+					restoreTable();
+				if(tag != 'Z')
+					throw new IOException("unexpected section " + (char) tag);
+				ByteBuffer trailer = read(8 + 8);
+				long total = trailer.getLong(), crc = trailer.getLong();
+				if(total != rows || crc != checksum.getValue())
+					throw new IOException("snapshot checksum doesn't match, nothing was restored");
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
+			}
+		}finally{
+			stream.close();
+		}
+		return summary(from);
+	}
+
+	private void restoreTable() throws IOException {
+		String name = readString(), sql = readString();
+		if(!name.matches("[A-Za-z_][A-Za-z0-9_]*") || !sql.regionMatches(true, 0, "CREATE TABLE ", 0, 13))
+			throw new IOException("bad table " + name);
+		String[] columns = new String[read(2).getShort()];
+		for(int i = 0; i < columns.length; i++){
+			columns[i] = readString();
+			if(!columns[i].matches("[A-Za-z_][A-Za-z0-9_]*"))
+				throw new IOException("bad column " + columns[i]);
+		}
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + sql.substring(13));
+		db.execSQL("delete from " + name);
+
+		StringBuilder insert = new StringBuilder("insert into ").append(name).append(" (");
+		for(int i = 0; i < columns.length; i++) insert.append(i > 0 ? ", " : "").append(columns[i]);
+		insert.append(") values (");
+		for(int i = 0; i < columns.length; i++) insert.append(i > 0 ? ",?" : "?");
+		SQLiteStatement statement = db.compileStatement(insert.append(')').toString());
+		long count = 0;
+		int chunks = 0;
+		try{
+			byte tag;
+			while((tag = read(1).get()) == 'C'){
+				ByteBuffer head = read(4 + 4);
+				int chunk = head.getInt(), length = head.getInt();
+				ByteBuffer payload = read(length + 4);
+				CRC32 crc = new CRC32();
+				crc.update(payload.array(), 0, length);
+				payload.position(length);
+				if(payload.getInt() != (int) crc.getValue())
+					throw new IOException("chunk " + chunks + " of " + name + " is corrupt, nothing was restored");
+				checksum.update(payload.array(), 0, length);
+				payload.position(0);
+				for(int r = 0; r < chunk; r++){
+					statement.clearBindings();
+					for(int i = 1; i <= columns.length; i++){
+						byte type = payload.get();
+						if(type == LONG) statement.bindLong(i, payload.getLong());
+						else if(type == DOUBLE) statement.bindDouble(i, payload.getDouble());
+						else if(type == STRING) statement.bindString(i, new String(bytes(payload), UTF8));
+						else if(type == BLOB) statement.bindBlob(i, bytes(payload));
+						else statement.bindNull(i);
+					}
+					statement.executeInsert();
+				}
+				count += chunk;
+				rows += chunk;
+				chunks++;
+				progress.progress(name, rows, bytes, (double) bytes / expected);
+			}
+			if(tag != 'E')
+				throw new IOException("unexpected section " + (char) tag + " in " + name);
+			if(read(8).getLong() != count)
+				throw new IOException(name + " is short, nothing was restored");
+		}finally{
+			statement.close();
+		}
+		tables.addProperty(name, count);
+	}
+
+	//exactly n more bytes of the file, in the reused buffer
+	//Lengths come from the file before any crc is checked, so one that runs past the end is corruption, not an allocation
+	private ByteBuffer read(int n) throws IOException {
+		if(n < 0 || n > channel.size() - channel.position())
+			throw new IOException("corrupt snapshot, a length of " + n + " runs past the end of the file");
+		if(buffer.capacity() < n) buffer = ByteBuffer.allocate(n);
+		buffer.clear();
+		buffer.limit(n);
+		while(buffer.hasRemaining())
+			if(channel.read(buffer) < 0) throw new EOFException("snapshot ends early");
+		bytes += n;
+		buffer.flip();
+		return buffer;
+	}
+
+	private String readString() throws IOException {
+		int length = read(4).getInt();
+		ByteBuffer b = read(length);
+		return new String(b.array(), 0, length, UTF8);
+	}
+
+	private static byte[] bytes(ByteBuffer from) {
+		byte[] value = new byte[from.getInt()];
+		from.get(value);
+		return value;
+	}
+
+	private static void putString(ByteBuffer to, byte[] value) {
+		to.putInt(value.length).put(value);
+	}
+
+	private static byte[] utf8(String value) throws UnsupportedEncodingException {
+		return value.getBytes(UTF8);
+	}
+
+	private JsonObject summary(File file) {
+		JsonObject summary = new JsonObject();
+		summary.addProperty("file", file.getAbsolutePath());
+		summary.add("tables", tables);
+		summary.addProperty("rows", rows);
+		summary.addProperty("bytes", bytes);
+		summary.addProperty("checksum", Long.toHexString(checksum.getValue()));
+		return summary;
+	}
+}
@@ -0,0 +1,171 @@
+package io.trigger.forge.android.modules.database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+//A query result that got too big to hold, see NotesDatabase.queryWithBudget. Rows go to
+//cache/spill one JSON object per line, and instead of the rows JS gets {spill, rows, bytes,
+//peakBytes} and reads them back with database.readSpill a chunk at a time.
+//Also keeps the peak memory of the last few results, spilled or not, for diagnostics.
+class Spill {
+	//about how much a result's rows can hold in memory before they go to a file
+	static volatile long budget = 4 * 1024 * 1024;
+
+	//rough sizes of the Gson tree on a 32 bit vm, near enough to keep under a budget
+	static final long OBJECT = 64;
+	private static final long ENTRY = 48, STRING = 40, NUMBER = 24;
+	private static final int RECENT = 32;
+	private static final String UTF8 = "UTF-8";
+
+	private static volatile File dir;
+	private static final Map<String, Spill> open = new ConcurrentHashMap<String, Spill>();
+	private static final AtomicLong ids = new AtomicLong();
+
+	final String handle;
+	private final File file;
+	private Writer out;
+	private BufferedReader in;
+	private long rows = 0, bytes = 0;
+
+	private Spill(String handle, File file) throws IOException {
+		this.handle = handle;
+		this.file = file;
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8), 16 * 1024);
+	}
+
+	//Anything left in there is from a run that never got read to the end
+	static synchronized void init(File cacheDir) {
+		if(dir != null)
+			return;
+		File spills = new File(cacheDir, "spill");
+		spills.mkdirs();
+		File[] left = spills.listFiles();
+		for(int i = 0; left != null && i < left.length; i++) left[i].delete();
+		dir = spills;
+	}
+
+	static Spill create() throws IOException {
+		if(dir == null)
+			throw new IOException("nowhere to spill to yet");
+		String handle = "spill-" + ids.incrementAndGet();
+		Spill spill = new Spill(handle, new File(dir, handle + ".jsonl"));
+		open.put(handle, spill);
+		return spill;
+	}
+
+	static long size(String name, JsonPrimitive value) {
+		long entry = ENTRY + 2L * name.length();
+		if(value == null)
+			return entry;
+		return entry + (value.isString() ? STRING + 2L * value.getAsString().length() : NUMBER);
+	}
+
+	void write(JsonElement row) throws IOException {
+		String line = row.toString();
+		out.write(line);
+		out.write('\n');
+		rows++;
+		bytes += line.length() + 1;
+	}
+
+	JsonObject finish(long peak) throws IOException {
+		out.close();
+		out = null;
+		JsonObject result = new JsonObject();
+		result.addProperty("spill", handle);
+		result.addProperty("rows", rows);
+		result.addProperty("bytes", bytes);
+		result.addProperty("peakBytes", peak);
+		return result;
+	}
+
+	void discard() {
+		open.remove(handle);
+		try{
+			if(out != null) out.close();
+			if(in != null) in.close();
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+		file.delete();
+	}
+
+	//The next `limit` rows, and however many more fit under the budget if they're small.
+	//{rows, done}, the file's gone once done is true
+	static JsonObject read(String handle, int limit) throws IOException {
+		Spill spill = open.get(handle);
+		if(spill == null)
+			throw new IOException("no spill " + handle + ", it's been read already or the app restarted");
+		synchronized(spill){
+			if(spill.in == null)
+				spill.in = new BufferedReader(new InputStreamReader(new FileInputStream(spill.file), UTF8), 16 * 1024);
+			JsonArray rows = new JsonArray();
+			JsonParser parser = new JsonParser();
+			long held = 0;
+			String line = null;
+			while(rows.size() < limit && held < budget && (line = spill.in.readLine()) != null){
+				rows.add(parser.parse(line));
+				held += OBJECT + 2L * line.length();
+			}
+			boolean done = line == null;
+			if(done)
+				spill.discard();
+			JsonObject result = new JsonObject();
+			result.add("rows", rows);
+			result.addProperty("done", done);
+			return result;
+		}
+	}
+
+	static void close(String handle) {
+		Spill spill = open.get(handle);
+		if(spill != null) spill.discard();
+	}
+
+	private static final LinkedList<JsonObject> recent = new LinkedList<JsonObject>();
+	private static long results = 0, spilled = 0, maxPeak = 0;
+
+	static synchronized void record(String query, long rows, long peak, boolean spilt) {
+		JsonObject entry = new JsonObject();
+		entry.addProperty("query", query.length() > 120 ? query.substring(0, 120) + "..." : query);
+		entry.addProperty("rows", rows);
+		entry.addProperty("peakBytes", peak);
+		entry.addProperty("spilled", spilt);
+		recent.addLast(entry);
+		if(recent.size() > RECENT) recent.removeFirst();
+		results++;
+		if(spilt) spilled++;
+		maxPeak = Math.max(maxPeak, peak);
+	}
+
+	//{budget, results, spilled, maxPeakBytes, open, recent: [{query, rows, peakBytes, spilled}]}
+	static synchronized JsonObject stats() {
+		JsonObject stats = new JsonObject();
+		stats.addProperty("budget", budget);
+		stats.addProperty("results", results);
+		stats.addProperty("spilled", spilled);
+		stats.addProperty("maxPeakBytes", maxPeak);
+		stats.addProperty("open", open.size());
+		JsonArray entries = new JsonArray();
+		for(JsonObject entry : recent) entries.add(entry);
+		stats.add("recent", entries);
+		return stats;
+	}
+}
@@ -0,0 +1,168 @@
+package io.trigger.forge.android.modules.database;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+import android.annotation.SuppressLint;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+//Picks page cache, mmap, journal and sync settings for a connection from how big
+//the database is and how much memory the device gives us, applies them, and keeps
+//track of how reads/writes perform under them. Connections open and close around every
+//call, so a profile is kept until the file's size has moved a long way from what it was
+//chosen for, and the journal mode is only ever picked once per process.
+public class StorageProfile {
+	public static final String RELAXED = "relaxed", NORMAL = "normal", STRICT = "strict";
+
+	private static final long KB = 1024, MB = 1024 * KB;
+
+	private static int memoryClass = -1;//MB per app, same for the life of the process
+	private static Boolean walChosen;//from the first profile, so the file doesn't flip between journal modes
+
+	public final long databaseBytes;
+	public final int memoryClassMB;
+	public final boolean lowMemory;
+	public final long cacheBytes;
+	public final long mmapBytes;
+	public final boolean wal;
+	public final String durability;//default synchronous level for this connection
+	private boolean walApplied = false;//wal is what we asked for, this is whether we got it
+	private long pageSize = 0;
+
+	//what sqlite actually ended up with, older versions silently ignore some of these
+	private final Map<String, String> applied = new HashMap<String, String>();
+
+	private StorageProfile(long databaseBytes, int memoryClassMB, boolean lowMemory, boolean wal) {
+		this.databaseBytes = databaseBytes;
+		this.memoryClassMB = memoryClassMB;
+		this.lowMemory = lowMemory;
+
+		long budget = lowMemory ? 256 * KB : memoryClassMB * MB / 16;//never more than 1/16 of the heap
+		cacheBytes = Math.max(512 * KB, Math.min(databaseBytes + 256 * KB, budget));
+		//mapping only pays off once the file is bigger than what we'd cache anyway
+		mmapBytes = !lowMemory && memoryClassMB >= 64 && databaseBytes > cacheBytes
+				? Math.min(databaseBytes * 2, 64 * MB) : 0;
+		this.wal = wal;
+		durability = wal ? NORMAL : STRICT;//without WAL, NORMAL can still corrupt on power loss
+	}
+
+	//previous: the profile the last connection used, handed back if it still fits
+	public static synchronized StorageProfile choose(Context context, File databaseFile, StorageProfile previous) {
+		long bytes = databaseFile.exists() ? databaseFile.length() : 0;
+		if(previous != null && Math.abs(bytes - previous.databaseBytes) <= Math.max(previous.databaseBytes / 2, MB))
+			return previous;
+		ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+		manager.getMemoryInfo(info);
+		if(memoryClass < 0)
+			memoryClass = manager.getMemoryClass();
+		if(walChosen == null)
+			walChosen = !info.lowMemory;
+		return new StorageProfile(bytes, memoryClass, info.lowMemory, walChosen);
+	}
+
+	//every time a connection opens, the pragmas don't outlive it. Only checks what it got the first time
+	public synchronized void apply(SQLiteDatabase db) {
+		boolean first = pageSize == 0;
+		if(first)
+			pageSize = Long.parseLong(pragma(db, "page_size"));
+		pragma(db, "cache_size=" + (cacheBytes / pageSize));
+		pragma(db, "mmap_size=" + mmapBytes);
+		walApplied = wal && enableWal(db);
+		if(!walApplied)
+			pragma(db, "journal_mode=TRUNCATE");
+		setDurability(db, durability);
+		if(!first)
+			return;
+		applied.put("page_size", "" + pageSize);
+		for(String name : new String[]{"cache_size", "mmap_size", "journal_mode", "synchronous"})
+			applied.put(name, pragma(db, name));
+		Log.e("storage profile", toJson().toString());
+	}
+
+	@SuppressLint("NewApi")
+	private boolean enableWal(SQLiteDatabase db) {
+		try{
+			return db.enableWriteAheadLogging();
+		}catch(java.lang.NoSuchMethodError e){
+			return false;//pre-honeycomb
+		}
+	}
+
+	//relaxed is for stuff we can just fetch again (sync data), strict for the user's own edits.
+	//Relaxed can lose the last few commits on power loss but never the file: NORMAL is only
+	//that safe under WAL, so without it relaxed is as strict as strict. OFF could corrupt everything
+	public void setDurability(SQLiteDatabase db, String level) {
+		if(RELAXED.equals(level))
+			pragma(db, walApplied ? "synchronous=NORMAL" : "synchronous=FULL");
+		else if(STRICT.equals(level))
+			pragma(db, "synchronous=FULL");
+		else
+			pragma(db, "synchronous=NORMAL");
+	}
+
+	public void restoreDurability(SQLiteDatabase db) {
+		setDurability(db, durability);
+	}
+
+	//returns the first column of the first row, if there is one
+	private static String pragma(SQLiteDatabase db, String pragma) {
+		Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+		try{
+			return c.moveToFirst() ? c.getString(0) : null;
+		}finally{
+			c.close();
+		}
+	}
+
+	public synchronized JsonObject toJson() {
+		JsonObject profile = new JsonObject();
+		profile.addProperty("databaseBytes", databaseBytes);
+		profile.addProperty("memoryClassMB", memoryClassMB);
+		profile.addProperty("lowMemory", lowMemory);
+		profile.addProperty("cacheBytes", cacheBytes);
+		profile.addProperty("mmapBytes", mmapBytes);
+		profile.addProperty("wal", wal);
+		profile.addProperty("durability", durability);
+
+		JsonObject pragmas = new JsonObject();
+		for(Map.Entry<String, String> entry : applied.entrySet())
+			pragmas.addProperty(entry.getKey(), entry.getValue());
+		profile.add("applied", pragmas);
+		return profile;
+	}
+
+	//outlives the connections (and so the profiles), we open/close all the time
+	public static class Timings {
+		private final Map<String, long[]> timings = new HashMap<String, long[]>();//kind -> {count, total nanos, max nanos}
+
+		public synchronized void record(String kind, long nanos) {
+			long[] timing = timings.get(kind);
+			if(timing == null)
+				timings.put(kind, timing = new long[3]);
+			timing[0]++;
+			timing[1] += nanos;
+			timing[2] = Math.max(timing[2], nanos);
+		}
+
+		public synchronized JsonObject toJson() {
+			JsonObject measured = new JsonObject();
+			for(Map.Entry<String, long[]> entry : timings.entrySet()){
+				long[] timing = entry.getValue();
+				JsonObject stats = new JsonObject();
+				stats.addProperty("count", timing[0]);
+				stats.addProperty("avgMillis", timing[1] / (double) timing[0] / 1e6);
+				stats.addProperty("maxMillis", timing[2] / 1e6);
+				measured.add(entry.getKey(), stats);
+			}
+			return measured;
+		}
+	}
+}
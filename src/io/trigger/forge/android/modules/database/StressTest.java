@@ -0,0 +1,277 @@
+package io.trigger.forge.android.modules.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import android.content.Context;
+import android.database.Cursor;
+
+//Hammers one shared NotesDatabase from several threads at once with the same calls the bridge
+//makes (query, multiQuery, writeAll, createTables/dropTables), the way overlapping DatabaseTasks
+//do, then checks what's left:
+//	every write that came back ok is there, with the text it was last given
+//	every note's entity rows are exactly what NoteEntities finds in its text
+//	and counts the errors, the closed/not open connection ones separately.
+//Runs on its own scratch database, once per thread count asked for.
+class StressTest {
+	static final String NAME = "Stress";
+	static final String[] OPS = {"query", "multiQuery", "write", "update", "drop"};
+	private static final int SAMPLES = 5;
+
+	private final Context context;
+	private final long millis;
+	private final double[] weights = new double[OPS.length];
+
+	StressTest(Context context, long millis, JsonObject mix) {
+		this.context = context;
+		this.millis = millis;
+		double[] defaults = {4, 2, 3, 1, 0.2};
+		for(int i = 0; i < OPS.length; i++)
+			weights[i] = mix != null && mix.has(OPS[i]) ? mix.get(OPS[i]).getAsDouble() : defaults[i];
+	}
+
+	//A note one worker wrote, nobody else touches it
+	private static class Written {
+		final String id;
+		final long localID;
+		Written(String id, long localID) {
+			this.id = id;
+			this.localID = localID;
+		}
+	}
+
+	private class Run {
+		final NotesDatabase db;
+		final Map<String, String> acknowledged = new ConcurrentHashMap<String, String>();//id -> text
+		final AtomicLong[] counts = new AtomicLong[OPS.length];
+		final AtomicLong closed = new AtomicLong(), other = new AtomicLong();
+		final List<String> samples = Collections.synchronizedList(new ArrayList<String>());
+		Run(NotesDatabase db) {
+			this.db = db;
+			for(int i = 0; i < OPS.length; i++) counts[i] = new AtomicLong();
+		}
+	}
+
+	JsonArray run(JsonArray threadCounts) throws Exception {
+		JsonArray report = new JsonArray();
+		for(int t = 0; t < threadCounts.size(); t++){
+			context.deleteDatabase(NAME);
+			NotesDatabase db = new NotesDatabase(context, NAME);
+			try{
+				report.add(run(db, threadCounts.get(t).getAsInt()));
+			}finally{
+				db.close();
+				context.deleteDatabase(NAME);
+			}
+		}
+		return report;
+	}
+
+	private JsonObject run(NotesDatabase db, int threads) throws Exception {
+		db.createTables(Benchmark.schema());
+		final Run run = new Run(db);
+		final long deadline = System.currentTimeMillis() + millis;
+		List<Thread> workers = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for(int t = 0; t < threads; t++){
+			final int worker = t;
+			Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run() {
+					work(run, worker, deadline);
+				}
+			}, "stress-" + t);
+			workers.add(thread);
+			thread.start();
+		}
+		for(Thread thread : workers)
+			thread.join();
+		long elapsed = System.nanoTime() - start;
+
+		JsonObject result = new JsonObject();
+		result.addProperty("threads", threads);
+		long total = 0;
+		JsonObject ops = new JsonObject();
+		for(int i = 0; i < OPS.length; i++){
+			ops.addProperty(OPS[i], run.counts[i].get());
+			total += run.counts[i].get();
+		}
+		result.addProperty("ops", total);
+		result.addProperty("opsPerSecond", total * 1e9 / elapsed);
+		result.add("byOp", ops);
+		JsonObject errors = new JsonObject();
+		errors.addProperty("closedConnection", run.closed.get());
+		errors.addProperty("other", run.other.get());
+		JsonArray samples = new JsonArray();
+		for(String sample : run.samples) samples.add(new JsonPrimitive(sample));
+		errors.add("samples", samples);
+		result.add("errors", errors);
+		verify(run, result);
+		return result;
+	}
+
+	private void work(Run run, int worker, long deadline) {
+		Random random = new Random(worker);
+		List<Written> mine = new ArrayList<Written>();
+		double total = 0;
+		for(double w : weights) total += w;
+		for(int n = 0; System.currentTimeMillis() < deadline; n++){
+			int op = pick(random.nextDouble() * total);
+			try{
+				switch(op){
+				case 0:
+					run.db.queryToObjects("select * from Notes order by localID desc limit 20");
+					break;
+				case 1:{
+					JsonArray reads = new JsonArray();
+					reads.add(new JsonPrimitive("select * from Notes order by localID desc limit 20"));
+					reads.add(new JsonPrimitive("select hashtags as name, count(*) as count from NoteTag group by hashtags"));
+					API.multiQuery(run.db, reads);
+					break;
+				}
+				case 2:{
+					String id = "w" + worker + "-" + n, text = text(random);
+					JsonArray inserted = API.writeAll(run.db, queries(write("insert into Notes (text, id, timestamp, status) values (?,?,?,?)",
+							NotesDatabase.args(text, id, String.valueOf(n), "synced"))), "");
+					long localID = inserted.get(0).getAsLong();
+					API.writeAll(run.db, entityQueries(localID, text), "");
+					mine.add(new Written(id, localID));
+					run.acknowledged.put(id, text);
+					break;
+				}
+				case 3:{
+					if(mine.isEmpty()) continue;
+					Written note = mine.get(random.nextInt(mine.size()));
+					String text = text(random);
+					JsonArray rewrite = queries(write("update Notes set text=? where localID=?", NotesDatabase.args(text, note.localID)));
+					for(String table : NoteEntities.TABLES.values())
+						rewrite.add(write("delete from " + table + " where localID=?", NotesDatabase.args(note.localID)));
+					API.writeAll(run.db, rewrite, "");
+					API.writeAll(run.db, entityQueries(note.localID, text), "");
+					run.acknowledged.put(note.id, text);
+					break;
+				}
+				case 4:{
+					JsonArray scratch = new JsonArray();
+					JsonObject table = new JsonObject();
+					table.addProperty("name", "StressScratch" + worker);
+					table.addProperty("schema", "(x TEXT)");
+					scratch.add(table);
+					run.db.createTables(scratch);
+					JsonArray names = new JsonArray();
+					names.add(new JsonPrimitive("StressScratch" + worker));
+					run.db.dropTables(names);
+					break;
+				}
+				}
+				run.counts[op].incrementAndGet();
+			}catch(Exception e){
+				String message = e.getClass().getSimpleName() + ": " + e.getMessage();
+				String lower = message.toLowerCase();
+				if(lower.contains("closed") || lower.contains("not open"))
+					run.closed.incrementAndGet();
+				else
+					run.other.incrementAndGet();
+				if(run.samples.size() < SAMPLES) run.samples.add(OPS[op] + " " + message);
+			}
+		}
+	}
+
+	private int pick(double at) {
+		for(int i = 0; i < weights.length; i++){
+			if(at < weights[i]) return i;
+			at -= weights[i];
+		}
+		return weights.length - 1;
+	}
+
+	private void verify(Run run, JsonObject result) {
+		long lost = 0, changed = 0, mismatched = 0;
+		run.db.open();
+		try{
+			for(Map.Entry<String, String> note : run.acknowledged.entrySet()){
+				Cursor c = run.db.db.rawQuery("select localID, text from Notes where id=?", new String[]{note.getKey()});
+				try{
+					if(!c.moveToFirst()){
+						lost++;
+						continue;
+					}
+					long localID = c.getLong(0);
+					String text = c.getString(1);
+					if(!note.getValue().equals(text))
+						changed++;
+					for(Map.Entry<String, List<String>> found : NoteEntities.find(text).entrySet()){
+						if(!found.getValue().equals(entities(run.db, found.getKey(), localID)))
+							mismatched++;
+					}
+				}finally{
+					c.close();
+				}
+			}
+		}finally{
+			run.db.close();
+		}
+		result.addProperty("acknowledgedWrites", run.acknowledged.size());
+		result.addProperty("lostWrites", lost);
+		result.addProperty("staleWrites", changed);
+		result.addProperty("entityMismatches", mismatched);
+		result.addProperty("consistent", lost + changed + mismatched == 0);
+	}
+
+	private static List<String> entities(NotesDatabase db, String column, long localID) {
+		List<String> values = new ArrayList<String>();
+		Cursor c = db.db.rawQuery("select " + column + " from " + NoteEntities.TABLES.get(column)
+				+ " where localID=? order by rowid", new String[]{String.valueOf(localID)});
+		try{
+			for(c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) values.add(c.getString(0));
+		}finally{
+			c.close();
+		}
+		return values;
+	}
+
+	private static String text(Random random) {
+		return "stress note " + random.nextInt(1000) + " #tag" + random.nextInt(20)
+				+ (random.nextBoolean() ? " @person" + random.nextInt(10) : "")
+				+ (random.nextInt(10) == 0 ? " http://example.com/" + random.nextInt(100) : "");
+	}
+
+	//what _buildAddEntitiesQueries sends, one batch per entity table
+	private static JsonArray entityQueries(long localID, String text) {
+		JsonArray queries = new JsonArray();
+		for(Map.Entry<String, List<String>> found : NoteEntities.find(text).entrySet()){
+			if(found.getValue().isEmpty()) continue;
+			JsonArray rows = new JsonArray();
+			for(String entity : found.getValue()) rows.add(NotesDatabase.args(localID, entity));
+			JsonObject query = new JsonObject();
+			query.addProperty("query", "insert into " + NoteEntities.TABLES.get(found.getKey())
+					+ " (localID , " + found.getKey() + ") values (?,?)");
+			query.add("rows", rows);
+			queries.add(query);
+		}
+		return queries;
+	}
+
+	private static JsonObject write(String query, JsonArray args) {
+		JsonObject write = new JsonObject();
+		write.addProperty("query", query);
+		write.add("args", args);
+		return write;
+	}
+
+	private static JsonArray queries(JsonElement... queries) {
+		JsonArray all = new JsonArray();
+		for(JsonElement query : queries) all.add(query);
+		return all;
+	}
+}
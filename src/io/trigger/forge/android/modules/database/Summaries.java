@@ -0,0 +1,154 @@
+package io.trigger.forge.android.modules.database;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+//NoteSummary, one row per note with all the notes list needs to draw it: the start of the text,
+//timestamp, status and each kind of entity packed into one space separated string. Triggers on
+//Notes and the entity tables keep it up to date, so whatever writes them (writeAll, writeBatch,
+//pipeline, push's applyDeltas, importSnapshot) updates it in the same transaction.
+//Compressed notes are blobs sqlite can't cut a preview from, theirs is filled in on the way out.
+class Summaries {
+	static final String TABLE = "NoteSummary";
+	static final int PREVIEW = 200;//chars
+
+	//Once Notes and the entity tables are all there. Cheap when it's already been done,
+	//otherwise fills the table in from what's in Notes
+	static void install(SQLiteDatabase db) {
+		if(!exists(db, "Notes"))
+			return;
+		for(String table : NoteEntities.TABLES.values())
+			if(!exists(db, table)) return;
+		boolean fresh = !exists(db, TABLE);
+		db.beginTransaction();
+		try{
+			db.execSQL("create table if not exists " + TABLE + " (localID INTEGER PRIMARY KEY, id TEXT, preview TEXT,"
+					+ " timestamp TEXT, status TEXT, hashtags TEXT, attags TEXT, emails TEXT, urls TEXT)");
+			db.execSQL("create index if not exists " + TABLE + "_timestamp on " + TABLE + " (timestamp, localID)");
+			//the triggers look up a note's entities by localID, and so do the deletes JS sends
+			for(String table : NoteEntities.TABLES.values())
+				db.execSQL("create index if not exists " + table + "_localID on " + table + " (localID)");
+
+			db.execSQL("create trigger if not exists " + TABLE + "_insert after insert on Notes begin "
+					+ upsert("new") + "; end");
+			db.execSQL("create trigger if not exists " + TABLE + "_update after update on Notes begin "
+					+ "delete from " + TABLE + " where localID=old.localID and old.localID!=new.localID; "
+					+ upsert("new") + "; end");
+			db.execSQL("create trigger if not exists " + TABLE + "_delete after delete on Notes begin "
+					+ "delete from " + TABLE + " where localID=old.localID; end");
+			for(Map.Entry<String, String> entity : NoteEntities.TABLES.entrySet()){
+				String column = entity.getKey(), table = entity.getValue();
+				for(String row : new String[]{"new", "old"})
+					db.execSQL("create trigger if not exists " + TABLE + "_" + table + "_" + (row.equals("new") ? "insert" : "delete")
+							+ " after " + (row.equals("new") ? "insert" : "delete") + " on " + table + " begin "
+							+ "update " + TABLE + " set " + column + "=" + packed(column, table, row + ".localID")
+							+ " where localID=" + row + ".localID; end");
+			}
+			if(fresh)
+				db.execSQL("insert or replace into " + TABLE + " " + columns() + " select " + values("Notes") + " from Notes");
+			db.setTransactionSuccessful();
+		}finally{
+			db.endTransaction();
+		}
+	}
+
+	//After any of the tables it's made from is dropped. Its triggers on the ones that are
+	//left would be writing to a table that's gone, so they go too
+	static void uninstall(SQLiteDatabase db) {
+		for(String table : NoteEntities.TABLES.values()){
+			db.execSQL("drop trigger if exists " + TABLE + "_" + table + "_insert");
+			db.execSQL("drop trigger if exists " + TABLE + "_" + table + "_delete");
+		}
+		for(String trigger : new String[]{"insert", "update", "delete"})
+			db.execSQL("drop trigger if exists " + TABLE + "_" + trigger);
+		db.execSQL("drop table if exists " + TABLE);
+	}
+
+	static boolean exists(SQLiteDatabase db, String table) {
+		Cursor c = db.rawQuery("select 1 from sqlite_master where type='table' and name=?", new String[]{table});
+		try{
+			return c.moveToFirst();
+		}finally{
+			c.close();
+		}
+	}
+
+	//where: a where clause on NoteSummary's columns, or "". Newest first, with the entity
+	//lists split back out into arrays. overlay: edits to patch in, or null, see WriteBehind
+	static JsonArray page(SQLiteDatabase db, String where, int skip, int limit, Map<Long, WriteBehind.Edit> overlay) {
+		JsonArray rows = new JsonArray();
+		if(!exists(db, TABLE))
+			return rows;
+		Cursor c = db.rawQuery("select * from " + TABLE + " " + where + " order by timestamp desc, localID desc limit "
+				+ limit + " offset " + skip, null);
+		try{
+			String[] names = c.getColumnNames();
+			for(c.moveToFirst(); !c.isAfterLast(); c.moveToNext()){
+				JsonObject row = new JsonObject();
+				for(int i = 0; i < names.length; i++){
+					if(names[i].equals("localID")){
+						row.addProperty(names[i], c.getLong(i));
+					}else if(NoteEntities.TABLES.containsKey(names[i])){
+						JsonArray entities = new JsonArray();
+						if(!c.isNull(i))
+							for(String entity : c.getString(i).split(" ")) entities.add(new JsonPrimitive(entity));
+						row.add(names[i], entities);
+					}else{
+						row.addProperty(names[i], c.isNull(i) ? null : c.getString(i));
+					}
+				}
+				if(!row.has("preview") || row.get("preview").isJsonNull())
+					row.addProperty("preview", packedPreview(db, row.get("localID").getAsLong()));
+				if(overlay != null) WriteBehind.patch(row, overlay, Collections.<String>emptySet(), -1);
+				rows.add(row);
+			}
+		}finally{
+			c.close();
+		}
+		return rows;
+	}
+
+	private static String packedPreview(SQLiteDatabase db, long localID) {
+		Cursor c = db.rawQuery("select text from Notes where localID=" + localID, null);
+		try{
+			if(!c.moveToFirst() || c.isNull(0))
+				return "";
+			byte[] blob = c.getBlob(0);
+			return Compression.isPacked(blob) ? Compression.preview(blob, PREVIEW) : "";
+		}finally{
+			c.close();
+		}
+	}
+
+	private static String upsert(String row) {
+		return "insert or replace into " + TABLE + " " + columns() + " values (" + values(row) + ")";
+	}
+
+	private static String columns() {
+		StringBuilder columns = new StringBuilder("(localID, id, preview, timestamp, status");
+		for(String column : NoteEntities.TABLES.keySet()) columns.append(", ").append(column);
+		return columns.append(')').toString();
+	}
+
+	//row: "new" in a trigger, "Notes" filling it in
+	private static String values(String row) {
+		StringBuilder values = new StringBuilder();
+		values.append(row).append(".localID, ").append(row).append(".id, ")
+				.append("case when typeof(").append(row).append(".text)='text' then substr(").append(row).append(".text, 1, ").append(PREVIEW).append(") end, ")
+				.append(row).append(".timestamp, ").append(row).append(".status");
+		for(Map.Entry<String, String> entity : NoteEntities.TABLES.entrySet())
+			values.append(", ").append(packed(entity.getKey(), entity.getValue(), row + ".localID"));
+		return values.toString();
+	}
+
+	private static String packed(String column, String table, String localID) {
+		return "(select group_concat(" + column + ", ' ') from " + table + " where localID=" + localID + ")";
+	}
+}
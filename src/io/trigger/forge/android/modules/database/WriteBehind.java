@@ -0,0 +1,375 @@
+package io.trigger.forge.android.modules.database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import io.trigger.forge.android.core.ForgeTask;
+
+//Opt-in write-behind for the editor's saves (database.editNote). An edit is acked as soon as it's
+//been appended to the journal and put in the overlay, without waiting on sqlite, and reads see it
+//straight away: NotesDatabase takes a snapshot of the overlay under its lock as each read starts and
+//patches every row with a localID as it's built (text, preview, timestamp, status and NoteSummary's
+//entity lists). Where clauses, likes and hashtag filters still match what's in sqlite though, so
+//until the flush a note is found by what it said before the edit, and so is completion. The
+//overlay gets written out in one transaction per flush, which happens
+//	flushMillis after the first edit that's waiting
+//	as soon as maxPending notes are waiting
+//	when the app goes into the background
+//	before any other write, so everything still lands in the order it was made.
+//A note edited over and over while it waits is only written once.
+//The journal is one file per flush, deleted once that flush commits, and recover replays whatever's
+//left after a crash, oldest first. Edits only ever set a note's fields, so replaying one that had
+//made it already does no harm. Lines are handed to the OS, not synced, so it's safe from the app
+//dying but a power cut can lose the last moment of typing, the same bargain as durability "relaxed".
+class WriteBehind {
+	static class Edit {
+		final long localID;
+		final String text, timestamp, status;//null timestamp or status: leave it as it is
+		long since;//nanoTime of the first ack this edit stands for
+
+		Edit(long localID, String text, String timestamp, String status) {
+			this.localID = localID;
+			this.text = text;
+			this.timestamp = timestamp;
+			this.status = status;
+			since = System.nanoTime();
+		}
+
+		JsonObject toJson() {
+			JsonObject json = new JsonObject();
+			json.addProperty("localID", localID);
+			json.addProperty("text", text);
+			if(timestamp != null) json.addProperty("timestamp", timestamp);
+			if(status != null) json.addProperty("status", status);
+			return json;
+		}
+
+		static Edit fromJson(JsonObject json) {
+			return new Edit(json.get("localID").getAsLong(), json.get("text").getAsString(),
+					json.has("timestamp") ? json.get("timestamp").getAsString() : null,
+					json.has("status") ? json.get("status").getAsString() : null);
+		}
+	}
+
+	private static final String UTF8 = "UTF-8";
+
+	private final NotesDatabase db;
+	private final PageCache pages;
+	private final File dir;
+	//journal appends and timers, never waits on sqlite so acks don't either
+	private final ScheduledExecutorService journal = Executors.newSingleThreadScheduledExecutor();
+	//timer and size triggered flushes
+	private final ExecutorService flusher = Executors.newSingleThreadExecutor();
+	private final Object flushLock = new Object();
+
+	private volatile boolean enabled = false;
+	private volatile long flushMillis = 1000;
+	private volatile int maxPending = 50;
+
+	//localID -> latest edit, guarded by this
+	private Map<Long, Edit> pending = new LinkedHashMap<Long, Edit>();
+	private Map<Long, Edit> flushing = new LinkedHashMap<Long, Edit>();
+	private ScheduledFuture<?> timer;
+
+	//journal thread only
+	private long generation = 0;
+	private Writer out;
+
+	//flushLock: journals of flushes that failed, their edits went back into pending
+	private final List<File> unflushed = new ArrayList<File>();
+
+	private long journalBytes = 0, edits = 0, coalesced = 0, flushes = 0, flushed = 0, failures = 0;
+	private long lagTotal = 0, lagMax = 0, flushTotal = 0, flushMax = 0;
+
+	private final Runnable flushNow = new Runnable(){
+		@Override
+		public void run() {
+			try{
+				flush();
+			}catch(Exception e){
+				e.printStackTrace();//stays in the overlay and the journal, the next flush has another go
+			}
+		}
+	};
+
+	WriteBehind(NotesDatabase db, PageCache pages, File dir) {
+		this.db = db;
+		this.pages = pages;
+		this.dir = dir;
+	}
+
+	void configure(boolean on, long flushMillis, int maxPending) {
+		this.flushMillis = Math.max(0, flushMillis);
+		this.maxPending = Math.max(1, maxPending);
+		enabled = on;
+		if(!on) flusher.execute(flushNow);
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	//Acks the task once the edit's journaled, from the journal thread
+	void edit(final Edit edit, final ForgeTask task) {
+		journal.execute(new Runnable(){
+			@Override
+			public void run() {
+				long written;
+				try{
+					written = append(edit);
+				}catch(IOException e){
+					e.printStackTrace();
+					task.error(e);
+					return;
+				}
+				boolean full;
+				synchronized(WriteBehind.this){
+					edits++;
+					journalBytes += written;
+					Edit previous = pending.get(edit.localID);
+					if(previous != null){
+						coalesced++;
+						edit.since = previous.since;
+					}
+					pending.put(edit.localID, edit);
+					full = pending.size() >= maxPending;
+					if(!full) schedule();
+				}
+				task.success();
+				if(full)
+					flusher.execute(flushNow);
+			}
+		});
+	}
+
+	//guarded by this
+	private void schedule() {
+		if(timer == null)
+			timer = journal.schedule(new Runnable(){
+				@Override
+				public void run() {
+					flusher.execute(flushNow);
+				}
+			}, flushMillis, TimeUnit.MILLISECONDS);
+	}
+
+	void flushSoon() {
+		flusher.execute(flushNow);
+	}
+
+	//Writes everything waiting in one transaction, on the caller's thread. How many notes
+	int flush() throws Exception {
+		synchronized(flushLock){
+			//on the journal thread, so no edit can be appended to a file that's about to go
+			final Map<Long, Edit> batch = new LinkedHashMap<Long, Edit>();
+			File done = journal.submit(new Callable<File>(){
+				@Override
+				public File call() throws Exception {
+					synchronized(WriteBehind.this){
+						if(pending.isEmpty())
+							return null;
+						batch.putAll(pending);
+						flushing = pending;
+						pending = new LinkedHashMap<Long, Edit>();
+						if(timer != null) timer.cancel(false);
+						timer = null;
+					}
+					if(out != null) out.close();
+					out = null;
+					return file(generation++);
+				}
+			}).get();
+			if(done == null)
+				return 0;
+			long start = System.nanoTime();
+			//a read snapshots the overlay under the same lock, so it either sees the edits in
+			//sqlite or in flushing, never neither
+			synchronized(db){
+				try{
+					db.applyEdits(batch.values());
+				}catch(Exception e){
+					synchronized(this){
+						failures++;
+						for(Edit edit : batch.values())
+							if(!pending.containsKey(edit.localID)) pending.put(edit.localID, edit);//anything newer wins
+						flushing = new LinkedHashMap<Long, Edit>();
+						schedule();//try again in a bit
+					}
+					unflushed.add(done);
+					throw e;
+				}
+				pages.invalidate();
+				synchronized(this){
+					flushing = new LinkedHashMap<Long, Edit>();
+				}
+			}
+			long now = System.nanoTime();
+			synchronized(this){
+				flushes++;
+				flushed += batch.size();
+				for(Edit edit : batch.values()){
+					lagTotal += now - edit.since;
+					lagMax = Math.max(lagMax, now - edit.since);
+				}
+				flushTotal += now - start;
+				flushMax = Math.max(flushMax, now - start);
+			}
+			done.delete();
+			for(File file : unflushed) file.delete();
+			unflushed.clear();
+			return batch.size();
+		}
+	}
+
+	private File file(long generation) {
+		return new File(dir, "journal-" + generation + ".jsonl");
+	}
+
+	private long append(Edit edit) throws IOException {
+		if(out == null){
+			dir.mkdirs();
+			out = new OutputStreamWriter(new FileOutputStream(file(generation), true), UTF8);
+		}
+		String line = edit.toJson().toString() + "\n";
+		out.write(line);
+		out.flush();
+		return line.length();
+	}
+
+	//Whatever a crash left in the journal, before anything else gets at the notes.
+	//How many notes it put back
+	int recover() throws Exception {
+		File[] files = dir.listFiles();
+		if(files == null || files.length == 0)
+			return 0;
+		Arrays.sort(files, new Comparator<File>(){
+			@Override
+			public int compare(File a, File b) {
+				long x = generation(a), y = generation(b);
+				return x < y ? -1 : x == y ? 0 : 1;
+			}
+		});
+		Map<Long, Edit> edits = new LinkedHashMap<Long, Edit>();
+		JsonParser parser = new JsonParser();
+		for(File file : files){
+			generation = Math.max(generation, generation(file) + 1);
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try{
+				String line;
+				while((line = in.readLine()) != null){
+					try{
+						Edit edit = Edit.fromJson(parser.parse(line).getAsJsonObject());
+						edits.put(edit.localID, edit);
+					}catch(RuntimeException torn){
+						break;//the line it died halfway through, it was never acked
+					}
+				}
+			}finally{
+				in.close();
+			}
+		}
+		if(!edits.isEmpty())
+			db.applyEdits(edits.values());
+		for(File file : files) file.delete();
+		return edits.size();
+	}
+
+	private static long generation(File file) {
+		try{
+			return Long.parseLong(file.getName().replaceAll("[^0-9]", ""));
+		}catch(NumberFormatException e){
+			return -1;
+		}
+	}
+
+	//The edits a read should see, null when there aren't any. Only under NotesDatabase's lock
+	synchronized Map<Long, Edit> snapshot() {
+		if(pending.isEmpty() && flushing.isEmpty())
+			return null;
+		Map<Long, Edit> overlay = new HashMap<Long, Edit>(flushing);
+		overlay.putAll(pending);
+		return overlay;
+	}
+
+	//Patches a row that has a localID with its note's edit from the snapshot, if there is one.
+	//previewColumns get cut down to previewLength like preview does, NoteSummary's preview too
+	static void patch(JsonObject row, Map<Long, Edit> overlay, Set<String> previewColumns, int previewLength) {
+		JsonElement localID = row.get("localID");
+		if(localID == null || !localID.isJsonPrimitive())
+			return;
+		Edit edit;
+		try{
+			edit = overlay.get(localID.getAsLong());
+		}catch(NumberFormatException e){
+			return;
+		}
+		if(edit == null)
+			return;
+		if(row.has("text"))
+			row.addProperty("text", previewColumns.contains("text") ? Compression.preview(edit.text, previewLength) : edit.text);
+		if(row.has("preview") && !row.has("text"))
+			row.addProperty("preview", Compression.preview(edit.text, Summaries.PREVIEW));
+		if(edit.timestamp != null && row.has("timestamp")) row.addProperty("timestamp", edit.timestamp);
+		if(edit.status != null && row.has("status")) row.addProperty("status", edit.status);
+		Map<String, List<String>> found = null;
+		for(String column : NoteEntities.TABLES.keySet()){
+			if(!row.has(column) || !row.get(column).isJsonArray())
+				continue;
+			if(found == null) found = NoteEntities.find(edit.text);
+			JsonArray entities = new JsonArray();
+			for(String entity : found.get(column)) entities.add(new JsonPrimitive(entity));
+			row.add(column, entities);
+		}
+	}
+
+	//{enabled, pending, edits, coalesced, flushes, flushed, failures, journalBytes,
+	// lag: {meanMs, maxMs} from ack to commit, flush: {meanMs, maxMs}}
+	synchronized JsonObject stats() {
+		JsonObject stats = new JsonObject();
+		stats.addProperty("enabled", enabled);
+		stats.addProperty("flushMillis", flushMillis);
+		stats.addProperty("maxPending", maxPending);
+		stats.addProperty("pending", pending.size() + flushing.size());
+		stats.addProperty("edits", edits);
+		stats.addProperty("coalesced", coalesced);
+		stats.addProperty("flushes", flushes);
+		stats.addProperty("flushed", flushed);
+		stats.addProperty("failures", failures);
+		stats.addProperty("journalBytes", journalBytes);
+		JsonObject lag = new JsonObject();
+		lag.addProperty("meanMs", flushed == 0 ? 0 : lagTotal / 1e6 / flushed);
+		lag.addProperty("maxMs", lagMax / 1e6);
+		stats.add("lag", lag);
+		JsonObject flush = new JsonObject();
+		flush.addProperty("meanMs", flushes == 0 ? 0 : flushTotal / 1e6 / flushes);
+		flush.addProperty("maxMs", flushMax / 1e6);
+		stats.add("flush", flush);
+		return stats;
+	}
+}
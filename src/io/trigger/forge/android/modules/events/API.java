@@ -1,6 +1,8 @@
 package io.trigger.forge.android.modules.events;
 
 
+import org.json.JSONArray;
+
 import android.os.SystemClock;
 import android.view.MotionEvent;
 import android.webkit.WebView;
@@ -8,6 +10,7 @@ import io.trigger.forge.android.core.ForgeActivity;
 import io.trigger.forge.android.core.ForgeApp;
 import io.trigger.forge.android.core.ForgeParam;
 import io.trigger.forge.android.core.ForgeTask;
+import io.trigger.forge.android.modules.recorder.Tracer;
 
 public class API {
 	
@@ -15,27 +18,23 @@ public class API {
 			@ForgeParam("x") final int x, @ForgeParam("y") final int y){
 		ForgeActivity activity = ForgeApp.getActivity();
 		final WebView webView = activity.webView;
-		activity.runOnUiThread(new Runnable() {
+		activity.runOnUiThread(Tracer.wrap(new Runnable() {
         	public void run() {
-	        		webView.dispatchTouchEvent(MotionEvent.obtain(
-	        				SystemClock.uptimeMillis(),
-	        				SystemClock.uptimeMillis(), 
-	        				MotionEvent.ACTION_DOWN, 
-	        				x,
-	        				y,
-	        				0)
-	        		);
-	        		webView.dispatchTouchEvent(MotionEvent.obtain(
-	        				SystemClock.uptimeMillis(), 
-	        				SystemClock.uptimeMillis(), 
-	        				MotionEvent.ACTION_UP, 
-	        				x,
-	        				y,
-	        				0)
-	        		);
+        		long now = SystemClock.uptimeMillis();
+        		MotionEvent down = MotionEvent.obtain(now, now, MotionEvent.ACTION_DOWN, x, y, 0);
+        		webView.dispatchTouchEvent(down);
+        		down.recycle();
+        		MotionEvent up = MotionEvent.obtain(now, now, MotionEvent.ACTION_UP, x, y, 0);
+        		webView.dispatchTouchEvent(up);
+        		up.recycle();
 				task.success();
         	}
 	
-		});
+		}));
+	}
+	
+	//a whole scripted sequence of touches, drags, keys and text in one call, see InputBatch
+	public static void batch(final ForgeTask task, @ForgeParam("events") final JSONArray events){
+		InputBatch.dispatch(task, ForgeApp.getActivity().webView, events);
 	}
 }
@@ -0,0 +1,84 @@
+package io.trigger.forge.android.modules.events;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.EditText;
+import android.webkit.WebView;
+import io.trigger.forge.android.core.ForgeTask;
+
+//A scripted run of input, dispatched to the webview on TimedBatch's schedule. Events are
+//{type, at (ms from the start, optional)} plus
+//	touch: x, y
+//	drag: x, y, toX, toY, duration (ms, default 100), steps (moves, default 10)
+//	key: code (a KeyEvent keycode), action ("down", "up", or both if left out)
+//	text: text
+//The task gets TimedBatch's {count, elapsed, events: [{type, late, took}]}.
+public class InputBatch extends TimedBatch {
+	private final WebView webView;
+
+	private InputBatch(ForgeTask task, WebView webView, JSONArray events) {
+		super(task, events);
+		this.webView = webView;
+	}
+
+	public static void dispatch(ForgeTask task, WebView webView, JSONArray events) {
+		new InputBatch(task, webView, events).start();
+	}
+
+	@Override
+	protected String dispatch(JSONObject event, long now) throws JSONException {
+		String type = event.getString("type");
+		if(type.equals("touch")){
+			float x = (float) event.getDouble("x"), y = (float) event.getDouble("y");
+			touch(now, now, MotionEvent.ACTION_DOWN, x, y);
+			touch(now, now, MotionEvent.ACTION_UP, x, y);
+		}else if(type.equals("drag")){
+			float x = (float) event.getDouble("x"), y = (float) event.getDouble("y");
+			float toX = (float) event.getDouble("toX"), toY = (float) event.getDouble("toY");
+			long duration = event.optLong("duration", 100);
+			int steps = Math.max(1, event.optInt("steps", 10));
+			//the moves carry the times they'd have had, we don't sit and wait for them
+			touch(now, now, MotionEvent.ACTION_DOWN, x, y);
+			for(int i = 1; i <= steps; i++)
+				touch(now, now + duration * i / steps, MotionEvent.ACTION_MOVE,
+						x + (toX - x) * i / steps, y + (toY - y) * i / steps);
+			touch(now, now + duration, MotionEvent.ACTION_UP, toX, toY);
+		}else if(type.equals("key")){
+			int code = event.getInt("code");
+			String action = event.optString("action");
+			View target = keyTarget(webView);
+			if(!action.equals("up"))
+				target.dispatchKeyEvent(new KeyEvent(now, now, KeyEvent.ACTION_DOWN, code, 0));
+			if(!action.equals("down"))
+				target.dispatchKeyEvent(new KeyEvent(now, now, KeyEvent.ACTION_UP, code, 0));
+		}else if(type.equals("text")){
+			keyTarget(webView).dispatchKeyEvent(new KeyEvent(now, event.getString("text"),
+					KeyCharacterMap.VIRTUAL_KEYBOARD, 0));
+		}else{
+			throw new JSONException("unknown event type " + type);
+		}
+		return type;
+	}
+
+	//obtain() hands back a pooled event, and it goes back in the pool once it's been dispatched
+	private void touch(long downTime, long eventTime, int action, float x, float y) {
+		MotionEvent event = MotionEvent.obtain(downTime, eventTime, action, x, y, 0);
+		try{
+			webView.dispatchTouchEvent(event);
+		}finally{
+			event.recycle();
+		}
+	}
+
+	//pre-jelly bean, text input goes to the WebTextView the webview puts over the field
+	private static View keyTarget(WebView webView) {
+		View child = webView.getChildAt(0);
+		return child instanceof EditText ? child : webView;
+	}
+}
@@ -0,0 +1,70 @@
+package io.trigger.forge.android.modules.events;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import io.trigger.forge.android.core.ForgeTask;
+import io.trigger.forge.android.modules.recorder.Tracer;
+
+//Sends a list of timed items from the UI thread in as few hops as the timing allows: everything
+//that's due goes out in one pass, then it reposts itself for whatever's next. Items are objects
+//with an optional at (ms from the start), see InputBatch and keyboard's TypeBatch for the rest.
+//The task gets {count, elapsed, events: [{type, late, took}]}, late in ms behind schedule and
+//took in microseconds spent dispatching.
+public abstract class TimedBatch implements Runnable {
+	private static final Handler ui = new Handler(Looper.getMainLooper());
+
+	private final ForgeTask task;
+	private final JSONArray items;
+	private final JSONArray timings = new JSONArray();
+	private long start;
+	private int next = 0;
+
+	protected TimedBatch(ForgeTask task, JSONArray items) {
+		this.task = task;
+		this.items = items;
+	}
+
+	public final void start() {
+		start = SystemClock.uptimeMillis();
+		ui.post(Tracer.wrap(this));
+	}
+
+	//Sends one item, now is the time its events should carry. Its type, for the timings
+	protected abstract String dispatch(JSONObject item, long now) throws JSONException;
+
+	@Override
+	public final void run() {
+		try{
+			while(next < items.length()){
+				JSONObject item = items.getJSONObject(next);
+				long due = start + item.optLong("at", 0);
+				long now = SystemClock.uptimeMillis();
+				if(due > now){
+					ui.postAtTime(this, due);
+					return;
+				}
+				long began = System.nanoTime();
+				String type = dispatch(item, now);
+				JSONObject timing = new JSONObject();
+				timing.put("type", type);
+				timing.put("late", now - due);
+				timing.put("took", (System.nanoTime() - began) / 1000);
+				timings.put(timing);
+				next++;
+			}
+			JSONObject result = new JSONObject();
+			result.put("count", items.length());
+			result.put("elapsed", SystemClock.uptimeMillis() - start);
+			result.put("events", timings);
+			task.success(result);
+		}catch(Exception e){
+			e.printStackTrace();
+			task.error(e);
+		}
+	}
+}
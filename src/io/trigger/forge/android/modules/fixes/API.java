@@ -7,6 +7,7 @@ import android.view.WindowManager.LayoutParams;
 import io.trigger.forge.android.core.ForgeApp;
 import io.trigger.forge.android.core.ForgeParam;
 import io.trigger.forge.android.core.ForgeTask;
+import io.trigger.forge.android.modules.recorder.Tracer;
 
 public class API {
 	
@@ -25,13 +26,13 @@ public class API {
 			log("input mode before",params.softInputMode);
 			params.softInputMode = LayoutParams.SOFT_INPUT_ADJUST_NOTHING;
 			log("input mode after",params.softInputMode);
-			activity.runOnUiThread(new Runnable(){
+			activity.runOnUiThread(Tracer.wrap(new Runnable(){
 				@Override
 				public void run() {
 					window.setAttributes(params);
 					task.success("Yay screen size is fixed");
 				}
-			});
+			}));
 		} catch (Exception e) {
 			e.printStackTrace(System.err);
 			task.error(e);
@@ -15,12 +15,14 @@ Copyright 2012 Fetchnotes,Inc.
    limitations under the License.
   */
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import io.trigger.forge.android.core.ForgeActivity;
 import io.trigger.forge.android.core.ForgeApp;
 import io.trigger.forge.android.core.ForgeParam;
 import io.trigger.forge.android.core.ForgeTask;
+import io.trigger.forge.android.modules.recorder.Tracer;
 
 import android.content.Context;
 import android.os.Handler;
@@ -54,7 +56,7 @@ public class API {
 	private static void getTextViewAndTypeString(final ForgeActivity activity, final String text) {
 		final EditText webTextView = (EditText) activity.webView.getChildAt(0);
 		if(webTextView != null)
-			activity.runOnUiThread(typeString(webTextView, text));
+			activity.runOnUiThread(Tracer.wrap(typeString(webTextView, text)));
 	}
 	
 	public static void typeText (final ForgeTask task, @ForgeParam("text") final String text){
@@ -67,31 +69,33 @@ public class API {
 		}
 	}
 	
-	private static class StickyListener implements OnTouchListener{
-		private ForgeTask task;
-		public StickyListener setTask(ForgeTask task){
-			this.task = task;
-			return this;
-		}
-		@Override
-		public boolean onTouch(View v, MotionEvent event) {
-			if(event.getAction() == MotionEvent.ACTION_UP) show(task);
-			return false;
-		}
-	}
-	
-	private final static StickyListener KEYBOARD_LISTENER = new StickyListener();
-	
-	public static void stick(final ForgeTask task){
+	//texts: [{text, at (ms from the start, optional)}], typed in one UI thread pass
+	//where the timing allows, see TypeBatch
+	public static void typeBatch (final ForgeTask task, @ForgeParam("texts") final JSONArray texts){
 		try{
-			ForgeApp.getActivity().webView.setOnTouchListener(KEYBOARD_LISTENER.setTask(task));
-			task.success();
+			TypeBatch.dispatch(task, ForgeApp.getActivity().webView, texts);
 		}catch(Exception e){
 			e.printStackTrace();
 			task.error(e);
 		}
 	}
 	
+	//shows the keyboard on touch, if it isn't already up. Shared with alert, see KeyboardManager
+	public static void stick(final ForgeTask task){
+		task.performUI(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					ForgeApp.getActivity().webView.setOnTouchListener(KeyboardManager.get().stickyListener);
+					task.success();
+				}catch(Exception e){
+					e.printStackTrace();
+					task.error(e);
+				}
+			}
+		}));
+	}
+	
 	public static void unstick(final ForgeTask task){
 		try{
 			ForgeApp.getActivity().webView.setOnTouchListener(null);
@@ -111,20 +115,45 @@ public class API {
 		}
 	}
 	
+	public static void hide(final ForgeTask task){
+		try{
+			hide();
+			task.success();
+		}catch(Exception e){
+			task.error(e);
+		}
+	}
+	
+	//whether it's up, and how many show/hide requests came in, went out to the IME,
+	//or were dropped because nothing would have changed
+	public static void stats(final ForgeTask task){
+		task.performUI(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					task.success(KeyboardManager.get().stats());
+				}catch(Exception e){
+					task.error(e);
+				}
+			}
+		}));
+	}
+	
 	public static void show(){
-			InputMethodManager mgr = getKeyboard();
-	        mgr.toggleSoftInput(InputMethodManager.SHOW_FORCED,InputMethodManager.HIDE_IMPLICIT_ONLY);
+		ForgeApp.getActivity().runOnUiThread(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				KeyboardManager.get().requestShow();
+			}
+		}));
 	}
 	
 	public static void hide(){
-		InputMethodManager mgr = getKeyboard();
-	    mgr.toggleSoftInput(InputMethodManager.HIDE_IMPLICIT_ONLY, 0);
-		//ForgeApp.getActivity().getWindow().setSoftInputMode(
-		//	      WindowManager.LayoutParams.SOFT_INPUT_STATE_ALWAYS_HIDDEN);
-	}
-		
-	private static InputMethodManager getKeyboard(){
-		ForgeActivity activity = ForgeApp.getActivity();
-		return (InputMethodManager) activity.getSystemService(Context.INPUT_METHOD_SERVICE);
+		ForgeApp.getActivity().runOnUiThread(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				KeyboardManager.get().requestHide();
+			}
+		}));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+package io.trigger.forge.android.modules.keyboard;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import io.trigger.forge.android.core.ForgeActivity;
+import io.trigger.forge.android.core.ForgeApp;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.View.OnTouchListener;
+import android.view.ViewTreeObserver.OnGlobalLayoutListener;
+import android.view.inputmethod.InputMethodManager;
+
+//The one place the soft keyboard gets shown or hidden from, for keyboard and alert.
+//Works out whether it's actually up from how much of the window it covers after each layout,
+//and only asks the IME to show or hide when that would change something, so touching
+//around while it's already up doesn't toggle it or make the webview lay out again.
+//Requests within DEBOUNCE_MS of each other collapse into the last one.
+public class KeyboardManager implements OnGlobalLayoutListener {
+	public static final long DEBOUNCE_MS = 50;
+	//once we've asked, give the IME this long to show up before asking again
+	public static final long SETTLE_MS = 500;
+	//covers more than this much of the window, it's a keyboard and not just a status bar
+	private static final float KEYBOARD_FRACTION = 0.15f;
+
+	private static KeyboardManager instance;
+
+	private final ForgeActivity activity;
+	private final View root;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Rect frame = new Rect();
+
+	private boolean visible = false;
+	private Boolean wanted = null;//what the last request asked for, null once it's been dealt with
+	private boolean asked;//what we last told the IME
+	private long askedAt = 0;
+
+	private long requests = 0, issued = 0, skipped = 0, shown = 0, hidden = 0;
+
+	private final Runnable apply = new Runnable(){
+		@Override
+		public void run() {
+			apply();
+		}
+	};
+
+	public final OnTouchListener stickyListener = new OnTouchListener(){
+		@Override
+		public boolean onTouch(View v, MotionEvent event) {
+			if(event.getAction() == MotionEvent.ACTION_UP) requestShow();
+			return false;
+		}
+	};
+
+	private KeyboardManager(ForgeActivity activity) {
+		this.activity = activity;
+		root = activity.getWindow().getDecorView();
+		root.getViewTreeObserver().addOnGlobalLayoutListener(this);
+	}
+
+	//Call on the UI thread, the first call hooks into layout
+	public static synchronized KeyboardManager get() {
+		ForgeActivity activity = ForgeApp.getActivity();
+		if(instance == null || instance.activity != activity)
+			instance = new KeyboardManager(activity);
+		return instance;
+	}
+
+	public void requestShow() {
+		request(true);
+	}
+
+	public void requestHide() {
+		request(false);
+	}
+
+	private synchronized void request(boolean show) {
+		requests++;
+		if(wanted == null)
+			handler.postDelayed(apply, DEBOUNCE_MS);
+		else
+			skipped++;//the one already waiting goes out with this answer instead
+		wanted = show;
+	}
+
+	private void apply() {
+		boolean show;
+		synchronized(this){
+			if(wanted == null)
+				return;
+			show = wanted;
+			wanted = null;
+			boolean settling = asked == show && SystemClock.uptimeMillis() - askedAt < SETTLE_MS;
+			if(show == visible || settling){
+				skipped++;
+				return;
+			}
+			issued++;
+			asked = show;
+			askedAt = SystemClock.uptimeMillis();
+		}
+		InputMethodManager imm = (InputMethodManager) activity.getSystemService(Context.INPUT_METHOD_SERVICE);
+		if(show)
+			imm.showSoftInput(activity.webView, InputMethodManager.SHOW_FORCED);
+		else
+			imm.hideSoftInputFromWindow(activity.webView.getWindowToken(), 0);
+	}
+
+	@Override
+	public void onGlobalLayout() {
+		root.getWindowVisibleDisplayFrame(frame);
+		int height = root.getRootView().getHeight();
+		boolean now = height > 0 && height - frame.bottom > height * KEYBOARD_FRACTION;
+		synchronized(this){
+			if(now == visible)
+				return;
+			visible = now;
+			if(now) shown++; else hidden++;
+		}
+		try{
+			JSONObject event = new JSONObject();
+			event.put("visible", now);
+			ForgeApp.event("keyboard.visibility", event);
+		}catch(JSONException e){
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized boolean isVisible() {
+		return visible;
+	}
+
+	public synchronized JSONObject stats() throws JSONException {
+		JSONObject stats = new JSONObject();
+		stats.put("visible", visible);
+		stats.put("requests", requests);
+		stats.put("issued", issued);
+		stats.put("skipped", skipped);
+		stats.put("shown", shown);
+		stats.put("hidden", hidden);
+		return stats;
+	}
+}
@@ -0,0 +1,40 @@
+package io.trigger.forge.android.modules.keyboard;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+import android.view.View;
+import android.webkit.WebView;
+import android.widget.EditText;
+import io.trigger.forge.android.core.ForgeTask;
+import io.trigger.forge.android.modules.events.TimedBatch;
+
+//keyboard.typeBatch's texts, {text, at (ms from the start, optional)}, typed on events'
+//TimedBatch schedule. Each one's timing comes back as type "text"
+class TypeBatch extends TimedBatch {
+	private final WebView webView;
+
+	private TypeBatch(ForgeTask task, WebView webView, JSONArray texts) {
+		super(task, texts);
+		this.webView = webView;
+	}
+
+	static void dispatch(ForgeTask task, WebView webView, JSONArray texts) {
+		new TypeBatch(task, webView, texts).start();
+	}
+
+	@Override
+	protected String dispatch(JSONObject text, long now) throws JSONException {
+		keyTarget().dispatchKeyEvent(new KeyEvent(now, text.getString("text"), KeyCharacterMap.VIRTUAL_KEYBOARD, 0));
+		return "text";
+	}
+
+	//pre-jelly bean, text input goes to the WebTextView the webview puts over the field
+	private View keyTarget() {
+		View child = webView.getChildAt(0);
+		return child instanceof EditText ? child : webView;
+	}
+}
@@ -11,41 +11,80 @@ import com.kinvey.java.User;
 import io.trigger.forge.android.core.ForgeApp;
 import io.trigger.forge.android.core.ForgeParam;
 import io.trigger.forge.android.core.ForgeTask;
+import io.trigger.forge.android.modules.recorder.Tracer;
 
 public class API {
-	private static Client kinveyClient = 
-			new Client.Builder("kid_PVtSim6Wi5", "c429fbc2a46d4ac4930f67ef7e4f8a8e",
-					ForgeApp.getActivity()).build();
+	private static final String[] PUSH_KEYS = new String[]{"VNhKLCGhQKm6Kih-hQPWnQ", "7l5Tpp8RQzew51WNuieBlA"};
+	//built the first time something needs it, not when the class loads
+	private static Client kinveyClient;
+	
+	private static synchronized Client kinveyClient() {
+		if(kinveyClient == null){
+			long start = System.nanoTime();
+			kinveyClient = new Client.Builder("kid_PVtSim6Wi5", "c429fbc2a46d4ac4930f67ef7e4f8a8e",
+					ForgeApp.getActivity().getApplicationContext()).build();
+			Push.record("client", start);
+		}
+		return kinveyClient;
+	}
+	
+	//optional production (default true): which Urban Airship keys to register with
 	public static void loginToNative (final ForgeTask task,
 			@ForgeParam("username") final String username,
 			@ForgeParam("password") final String password) throws NoSuchAlgorithmException{
-		loginUserAndInitPush(task, username, password);
+		final boolean inProduction = task.params.optBoolean("production", true);
+		final long start = System.nanoTime();
+		task.performAsync(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					loginUserAndInitPush(task, username, password, inProduction, start);
+				}catch(NoSuchAlgorithmException e){
+					task.error(e);
+				}
+			}
+		}));
 	}
 	
 	private static void loginUserAndInitPush (final ForgeTask task, 
-			final String username, final String password) throws NoSuchAlgorithmException {
-		kinveyClient.user().login(username, Hash.sha1(password), new KinveyUserCallback (){
+			final String username, final String password, final boolean inProduction, final long start) throws NoSuchAlgorithmException {
+		final long loginStart = System.nanoTime();
+		kinveyClient().user().login(username, Hash.sha1(password), new KinveyUserCallback (){
 			@Override
 			public void onFailure(Throwable arg0) {
 				task.error(arg0);
 			}
 			@Override
 			public void onSuccess(User arg0) {
-				initializePush(task);
+				Push.record("login", loginStart);
+				initializePush(task, username, inProduction, start);
 			}
 		});
 	}
 	
-	private static void initializePush (ForgeTask task) {
-		Push.Settings settings = new Push.Settings(
-				ForgeApp.getActivity(),
-				new String[]{"VNhKLCGhQKm6Kih-hQPWnQ", "7l5Tpp8RQzew51WNuieBlA"},
-				kinveyClient
-			);
-		Push.initializePush(settings, task);
+	private static void initializePush (final ForgeTask task, final String username, final boolean inProduction, final long start) {
+		task.performAsync(Tracer.wrap(new Runnable(){
+			@Override
+			public void run() {
+				Push.Settings settings = new Push.Settings(
+						ForgeApp.getActivity(),
+						PUSH_KEYS,
+						kinveyClient(),
+						username,
+						inProduction
+					);
+				Push.initializePush(settings, task, start);
+			}
+		}));
+	}
+	
+	//how long the last client build, login, push init, registration and whole
+	//login-to-ready took, in ms, and whether registration was skipped
+	public static void timings(final ForgeTask task) {
+		task.success(Push.timings());
 	}
 	
-	private static class Hash {
+	static class Hash {
 		private static String bytesToHex(byte[] bytes){
 			Formatter formatter = new Formatter();
 	        for (byte b : bytes) formatter.format("%02x", b);
@@ -2,18 +2,18 @@ package io.trigger.forge.android.modules.push;
 
 import io.trigger.forge.android.core.ForgeTask;
 
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import android.app.Activity;
-import android.app.AlertDialog;
-import android.app.Application;
 import android.app.Notification;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Log;
-import android.widget.Toast;
 
+import com.google.gson.JsonObject;
 import com.kinvey.android.Client;
-import com.kinvey.android.push.PushOptions;
 import com.kinvey.android.push.UrbanAirshipPushOptions;
 import com.kinvey.java.core.KinveyClientCallback;
 import com.urbanairship.push.PushNotificationBuilder;
@@ -24,27 +24,80 @@ public class Push {
 		public final Activity activity;
 		public final String pushKey, pushSecret;
 		public final Client kinveyClient;
-		public Settings (Activity activity, String[] keys, Client kinveyClient){
+		public final String user;
+		public final boolean inProduction;
+		public Settings (Activity activity, String[] keys, Client kinveyClient, String user, boolean inProduction){
 			this.activity = activity;
 			pushKey = keys[PUSH_KEY];
 			pushSecret = keys[PUSH_SECRET];
 			this.kinveyClient = kinveyClient;
-			
+			this.user = user;
+			this.inProduction = inProduction;
+		}
+		//registering again only makes sense if one of these changed
+		String fingerprint(String pushId, boolean mode) {
+			try{
+				return API.Hash.sha1(user + '|' + pushKey + '|' + pushSecret + '|' + mode + '|' + pushId);
+			}catch(NoSuchAlgorithmException e){
+				return null;//never matches, so we always register
+			}
 		}
 	}
+	private static final String PREFS = "push", FINGERPRINT = "fingerprint";
+	
 	private static Settings settings;
-	public static void initializePush(Settings settings, ForgeTask task){
+	//the mode Urban Airship was started in, null until it has been. It only gets one go per process
+	private static Boolean initializedAs = null;
+	private static final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+	private static boolean skipped = false;
+	
+	//Call off the UI thread, it reads prefs. start is when the login began, for login-to-ready
+	public static void initializePush(Settings settings, ForgeTask task, long start){
 		Push.settings = settings;
-		initializeClient(false);
-		registerUser(task);
+		initializeClient(settings.inProduction);
+		registerUser(task, start);
 	}
 	
-	private static void registerUser(ForgeTask task) {
-		initializeClient(true);
-		addKinveyCallback(task);
+	private static void registerUser(final ForgeTask task, final long start) {
+		final SharedPreferences prefs = settings.activity.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+		final String fingerprint = settings.fingerprint(settings.kinveyClient.push().getPushId(), initializedAs);
+		if(fingerprint != null && fingerprint.equals(prefs.getString(FINGERPRINT, null))){
+			synchronized(Push.class){ skipped = true; }
+			record("ready", start);
+			task.success();
+			return;
+		}
+		final long registerStart = System.nanoTime();
+		settings.kinveyClient.user().registerPush(new KinveyClientCallback<Void>() {
+		    @Override
+		    public void onFailure(Throwable e)  {
+		    	e.printStackTrace();
+		    	prefs.edit().remove(FINGERPRINT).commit();
+		    	task.error(e);
+		    }
+		    @Override
+		    public void onSuccess(final Void v) {
+		    	record("register", registerStart);
+		    	record("ready", start);
+		    	synchronized(Push.class){ skipped = false; }
+		    	task.success();
+		    	task.performAsync(new Runnable(){
+					@Override
+					public void run() {
+						prefs.edit().putString(FINGERPRINT, fingerprint).commit();
+					}
+		    	});
+		    }
+		});
 	}
 	
-	private static void initializeClient (boolean inProduction) {
+	private static synchronized void initializeClient (boolean inProduction) {
+		if(initializedAs != null){
+			if(initializedAs != inProduction)
+				Log.e("push", "already started in " + (initializedAs ? "production" : "development") + " mode, staying there");
+			return;
+		}
+		long start = System.nanoTime();
 		UrbanAirshipPushOptions options = (UrbanAirshipPushOptions) 
 				settings.kinveyClient
 				.push().getPushOptions(settings.pushKey, settings.pushSecret, inProduction);
@@ -55,6 +108,7 @@ public class Push {
 			public Notification buildNotification(String arg0,
 					Map<String, String> arg1) {
 				Log.e(arg0, "" + arg1);
+				PushSync.handle(settings, arg1);//JS gets a database.synced event once it's in
 				return null;
 			}
 
@@ -64,34 +118,19 @@ public class Push {
 				return 0;
 			}
 		});
+		initializedAs = inProduction;
+		record("init", start);
 	}
-
-	private static void addKinveyCallback(final ForgeTask task) {
-		settings.kinveyClient.user().registerPush(new KinveyClientCallback<Void>() {
-		    @Override
-		    public void onFailure(Throwable e)  {
-		    	e.printStackTrace();
-		    	task.error(e);
-		    }
-		    @Override
-		    public void onSuccess(final Void v) {
-		    	settings.activity.runOnUiThread( new Runnable(){
-					@Override
-					public void run() {
-				    	Log.e("omg pushed", "u got pushed");
-				    	Log.e("a void:", v + "");
-				    	Toast.makeText(settings.activity, "Yay a push", 4000).show();
-				    	new AlertDialog.Builder(settings.activity)
-				    			.setTitle("WHAT")
-				    			.setMessage("POOSHED 2 U")
-				    			.show();
-						
-					}
-		    	});
-		    }
-		});
+	
+	static synchronized void record(String what, long start) {
+		timings.put(what, (System.nanoTime() - start) / 1000000);
 	}
-
 	
+	static synchronized JsonObject timings() {
+		JsonObject result = new JsonObject();
+		for(Map.Entry<String, Long> timing : timings.entrySet())
+			result.addProperty(timing.getKey(), timing.getValue());
+		result.addProperty("skippedRegistration", skipped);
+		return result;
+	}
 }
-
@@ -0,0 +1,77 @@
+package io.trigger.forge.android.modules.push;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.api.client.json.GenericJson;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.kinvey.android.callback.KinveyListCallback;
+import com.kinvey.java.Query;
+
+//Pushes that carry notes get them written straight into the notes database, in the
+//background and in one transaction per push, instead of waiting for JS to sync.
+//Either the notes themselves: extras.notes = '[{id, text, timestamp, delete}]'
+//or a marker to fetch from: extras.changedSince = the _kmd.lmt JS last synced up to
+class PushSync {
+	static final String NOTES = "notes", CHANGED_SINCE = "changedSince";
+	static final String COLLECTION = "notes";
+
+	//one at a time, so two pushes for the same note land in the order they came in
+	private static final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+	//false if there's nothing in it for us
+	static boolean handle(final Push.Settings settings, Map<String, String> extras) {
+		if(extras == null)
+			return false;
+		final Context context = settings.activity.getApplicationContext();
+		if(extras.containsKey(NOTES)){
+			final String notes = extras.get(NOTES);
+			worker.execute(new Runnable(){
+				@Override
+				public void run() {
+					apply(context, new JsonParser().parse(notes).getAsJsonArray());
+				}
+			});
+			return true;
+		}
+		if(extras.containsKey(CHANGED_SINCE)){
+			Query since = new Query().greaterThan("_kmd.lmt", extras.get(CHANGED_SINCE));
+			settings.kinveyClient.appData(COLLECTION, GenericJson.class).get(since, new KinveyListCallback<GenericJson>(){
+				@Override
+				public void onSuccess(final GenericJson[] results) {
+					worker.execute(new Runnable(){
+						@Override
+						public void run() {
+							Gson gson = new Gson();
+							JsonArray notes = new JsonArray();
+							for(GenericJson result : results)
+								notes.add(gson.toJsonTree(result, Map.class));
+							apply(context, notes);
+						}
+					});
+				}
+				@Override
+				public void onFailure(Throwable e) {
+					e.printStackTrace();
+				}
+			});
+			return true;
+		}
+		return false;
+	}
+
+	private static void apply(Context context, JsonArray notes) {
+		try{
+			int applied = io.trigger.forge.android.modules.database.API.applyDeltas(context, notes);
+			Log.e("push sync", applied + " of " + notes.size() + " notes applied");
+		}catch(Exception e){
+			e.printStackTrace();//JS will pick them up on its next sync
+		}
+	}
+}
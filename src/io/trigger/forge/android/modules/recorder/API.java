@@ -0,0 +1,103 @@
+package io.trigger.forge.android.modules.recorder;
+
+import java.io.File;
+
+import io.trigger.forge.android.core.ForgeApp;
+import io.trigger.forge.android.core.ForgeParam;
+import io.trigger.forge.android.core.ForgeTask;
+
+public class API {
+	
+	private static File recordings() {
+		return new File(ForgeApp.getActivity().getFilesDir(), "recordings");
+	}
+	
+	//starts writing every bridge call to recordings/<name>.jsonl.gz (name optional), see Recorder
+	public static void start(final ForgeTask task){
+		final String name = task.params.optString("name", "session-" + System.currentTimeMillis());
+		task.performAsync(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					task.success(Recorder.start(new File(recordings(), name + ".jsonl.gz")).getAbsolutePath());
+				}catch(Exception e){
+					e.printStackTrace();
+					task.error(e);
+				}
+			}
+		});
+	}
+	
+	//on: start or stop tracing bridge calls, UI thread hops and stalls, see Tracer
+	public static void trace(final ForgeTask task, @ForgeParam("on") final boolean on){
+		Tracer.enable(on);
+		task.success();
+	}
+	
+	//writes what's in the trace ring to traces/<time>.json, {file, spans, dropped}
+	public static void dumpTrace(final ForgeTask task){
+		task.performAsync(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					task.success(Tracer.dump(new File(new File(ForgeApp.getActivity().getFilesDir(), "traces"),
+							"trace-" + System.currentTimeMillis() + ".json")));
+				}catch(Exception e){
+					e.printStackTrace();
+					task.error(e);
+				}
+			}
+		});
+	}
+	
+	//storage work DiskGuard caught on the UI or bridge thread, see DiskGuard.report.
+	//Optional reset (default false) starts the count again
+	public static void diskGuard(final ForgeTask task){
+		try{
+			task.success(DiskGuard.report(task.params.optBoolean("reset")));
+		}catch(Exception e){
+			e.printStackTrace();
+			task.error(e);
+		}
+	}
+	
+	//{file, calls}
+	public static void stop(final ForgeTask task){
+		task.performAsync(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					task.success(Recorder.stop());
+				}catch(Exception e){
+					e.printStackTrace();
+					task.error(e);
+				}
+			}
+		});
+	}
+	
+	//file: a path, or the name of something in recordings/. Optional speed (default 1,
+	//0 for flat out), maxInFlight (default 32), timeout (ms to wait for a free slot or for
+	//stragglers, default 60000) and live (default false, true replays against the real notes
+	//instead of a scratch copy).
+	//Gives back latency percentiles per method, see Replayer
+	public static void replay(final ForgeTask task, @ForgeParam("file") final String file){
+		final Replayer replayer = new Replayer(task.params.optDouble("speed", 1),
+				task.params.optInt("maxInFlight", 32), task.params.optLong("timeout", 60000),
+				task.params.optBoolean("live"));
+		new Thread(new Runnable(){//can sit here for as long as the session took, keep it out of the AsyncTask pool
+			@Override
+			public void run() {
+				try{
+					File recording = new File(file);
+					if(!recording.isAbsolute())
+						recording = new File(recordings(), file.endsWith(".gz") ? file : file + ".jsonl.gz");
+					task.success(replayer.replay(recording));
+				}catch(Exception e){
+					e.printStackTrace();
+					task.error(e);
+				}
+			}
+		}, "replay").start();
+	}
+}
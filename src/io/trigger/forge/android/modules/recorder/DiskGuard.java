@@ -0,0 +1,102 @@
+package io.trigger.forge.android.modules.recorder;
+
+import java.util.LinkedList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Looper;
+import android.util.Log;
+
+//Catches storage work done on the UI thread, or on the thread a bridge call comes in on, where
+//it holds up drawing or every call queued behind it. database and contprov bracket their disk
+//work with enter/exit, and whatever turns out to be on one of those threads gets logged with
+//how long it held it up and what called it. The bridge methods hand their work to a background
+//task before it gets that far, so anything that shows up here is a bug.
+public class DiskGuard {
+	private static final String TAG = "DiskGuard";
+	private static final int KEEP = 64;//most recent, for diskGuard
+
+	//set while RecordingBridge is dispatching a call
+	private static final ThreadLocal<Boolean> bridge = new ThreadLocal<Boolean>();
+	//between an enter and its exit, so the inner ones of nested calls don't count twice
+	private static final ThreadLocal<Boolean> inside = new ThreadLocal<Boolean>();
+
+	private static final LinkedList<JSONObject> recent = new LinkedList<JSONObject>();
+	private static long count = 0, blockedNanos = 0, worstNanos = 0;
+
+	static void onBridge(boolean on) {
+		if(on) bridge.set(Boolean.TRUE); else bridge.remove();
+	}
+
+	//"ui", "bridge", or null if it's fine to block here
+	public static String guardedThread() {
+		if(Looper.myLooper() == Looper.getMainLooper())
+			return "ui";
+		return bridge.get() != null ? "bridge" : null;
+	}
+
+	//0 when there's nothing to watch, otherwise hand it back to exit once the work's done
+	public static long enter() {
+		if(guardedThread() == null || inside.get() != null)
+			return 0;
+		inside.set(Boolean.TRUE);
+		return System.nanoTime();
+	}
+
+	//what: the kind of work, e.g. "contprov.query"
+	public static void exit(String what, long began) {
+		if(began == 0)
+			return;
+		long took = System.nanoTime() - began;
+		inside.remove();
+		String thread = guardedThread();
+		String site = callSite();
+		Log.w(TAG, what + " blocked the " + thread + " thread for " + took / 1000000 + "ms, from " + site);
+		try{
+			JSONObject violation = new JSONObject();
+			violation.put("what", what);
+			violation.put("thread", thread);
+			violation.put("ms", took / 1e6);
+			violation.put("site", site);
+			violation.put("at", System.currentTimeMillis());
+			synchronized(DiskGuard.class){
+				count++;
+				blockedNanos += took;
+				worstNanos = Math.max(worstNanos, took);
+				recent.addLast(violation);
+				if(recent.size() > KEEP) recent.removeFirst();
+			}
+		}catch(JSONException e){
+			e.printStackTrace();
+		}
+	}
+
+	//the first frame that isn't the guard, the storage layer underneath it, or the framework
+	private static String callSite() {
+		for(StackTraceElement frame : new Throwable().getStackTrace()){
+			String name = frame.getClassName();
+			if(name.equals(DiskGuard.class.getName()) || name.endsWith(".FetchDB") || name.endsWith(".NotesDatabase")
+					|| name.endsWith(".MyContentProvider") || name.startsWith("android.")
+					|| name.startsWith("java.") || name.startsWith("dalvik.") || name.startsWith("sun."))
+				continue;
+			return name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1) + "." + frame.getMethodName() + ":" + frame.getLineNumber();
+		}
+		return "unknown";
+	}
+
+	//{count, blockedMs, worstMs, recent: [{what, thread, ms, site, at}]}
+	static synchronized JSONObject report(boolean reset) throws JSONException {
+		JSONObject report = new JSONObject();
+		report.put("count", count);
+		report.put("blockedMs", blockedNanos / 1e6);
+		report.put("worstMs", worstNanos / 1e6);
+		report.put("recent", new JSONArray(recent));
+		if(reset){
+			count = blockedNanos = worstNanos = 0;
+			recent.clear();
+		}
+		return report;
+	}
+}
@@ -0,0 +1,13 @@
+package io.trigger.forge.android.modules.recorder;
+
+import android.os.Bundle;
+import io.trigger.forge.android.core.ForgeApp;
+import io.trigger.forge.android.core.ForgeEventListener;
+
+public class EventListener extends ForgeEventListener {
+	//The page is still loading when this runs, so JS picks up our bridge and not the stock one
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		ForgeApp.getActivity().webView.addJavascriptInterface(new RecordingBridge(), "__forge");
+	}
+}
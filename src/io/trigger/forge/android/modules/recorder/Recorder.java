@@ -0,0 +1,106 @@
+package io.trigger.forge.android.modules.recorder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+//Writes every bridge call JS makes to a gzipped file, one line per call once it's returned:
+//{t: ms after recording started, m: method, p: params as JS sent them, d: ms until JS had
+//the result (-1 if it never came), s: status}
+//The first line is {version, started (epoch ms)}. Replayer reads these back.
+public class Recorder {
+	static final int VERSION = 1;
+
+	private static volatile boolean recording = false;
+	private static Writer out;
+	private static File file;
+	private static long started;
+	private static int calls;
+	//callid -> {t, method, params} for calls that haven't come back yet
+	private static final Map<String, Object[]> pending = new HashMap<String, Object[]>();
+
+	static boolean isRecording() {
+		return recording;
+	}
+
+	static synchronized File start(File to) throws IOException, JSONException {
+		if(recording)
+			stop();
+		to.getParentFile().mkdirs();
+		out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(to)), "UTF-8"));
+		file = to;
+		started = SystemClock.uptimeMillis();
+		calls = 0;
+		pending.clear();
+		JSONObject header = new JSONObject();
+		header.put("version", VERSION);
+		header.put("started", System.currentTimeMillis());
+		out.write(header.toString());
+		out.write('\n');
+		recording = true;
+		return to;
+	}
+
+	//{file, calls}
+	static synchronized JSONObject stop() throws IOException, JSONException {
+		JSONObject result = new JSONObject();
+		if(!recording)
+			return result;
+		recording = false;
+		for(Object[] call : pending.values())
+			write(call, -1, "pending");
+		pending.clear();
+		out.close();
+		out = null;
+		result.put("file", file.getAbsolutePath());
+		result.put("calls", calls);
+		return result;
+	}
+
+	static void called(String callid, String method, String params) {
+		if(!recording || method.startsWith("recorder."))
+			return;
+		long now = SystemClock.uptimeMillis();
+		synchronized(Recorder.class){
+			if(recording)
+				pending.put(callid, new Object[]{now, method, params});
+		}
+	}
+
+	static void returned(String callid, String status) {
+		long now = SystemClock.uptimeMillis();
+		synchronized(Recorder.class){
+			Object[] call = pending.remove(callid);
+			if(call == null || !recording)
+				return;
+			try{
+				write(call, now - (Long) call[0], status);
+			}catch(Exception e){
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void write(Object[] call, long duration, String status) throws IOException, JSONException {
+		JSONObject line = new JSONObject();
+		line.put("t", (Long) call[0] - started);
+		line.put("m", call[1]);
+		line.put("p", call[2] == null ? "" : call[2]);
+		line.put("d", duration);
+		line.put("s", status);
+		out.write(line.toString());
+		out.write('\n');
+		calls++;
+	}
+}
@@ -0,0 +1,45 @@
+package io.trigger.forge.android.modules.recorder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import io.trigger.forge.android.core.ForgeJSBridge;
+
+//The stock bridge, but it tells the Recorder and Tracer about every call that comes in from JS,
+//and every result JS collects. Costs nothing extra while neither is on.
+//Also marks the thread as the bridge's for DiskGuard while a call's being dispatched
+public class RecordingBridge extends ForgeJSBridge {
+	@Override
+	public void callJavaFromJavaScript(String callid, String method, String params) {
+		Recorder.called(callid, method, params);
+		Tracer.dispatching(callid, method);
+		DiskGuard.onBridge(true);
+		try{
+			super.callJavaFromJavaScript(callid, method, params);
+		}finally{
+			DiskGuard.onBridge(false);
+			Tracer.dispatched(callid);
+		}
+	}
+
+	@Override
+	public String getObjects() {
+		String objects = super.getObjects();
+		if(Recorder.isRecording() || Tracer.isEnabled()){
+			try{
+				JSONArray results = new JSONArray(objects);
+				for(int i = 0; i < results.length(); i++){
+					JSONObject result = results.getJSONObject(i);
+					if(result.has("callid")){
+						Recorder.returned(result.optString("callid"), result.optString("status"));
+						Tracer.returned(result.optString("callid"), result.optString("status"));
+					}
+				}
+			}catch(JSONException e){
+				e.printStackTrace();
+			}
+		}
+		return objects;
+	}
+}
@@ -0,0 +1,313 @@
+package io.trigger.forge.android.modules.recorder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import io.trigger.forge.android.core.ForgeApp;
+import io.trigger.forge.android.core.ForgeParam;
+import io.trigger.forge.android.core.ForgeTask;
+
+//Plays a Recorder file back against the module API classes, the same calls with the same
+//params in the same order, and times each one until it returns.
+//speed: 1 is as recorded, 10 is ten times faster, 0 is as fast as calls can go out.
+//At most maxInFlight calls are outstanding at once, whatever the speed. If no slot frees up
+//within timeout the rest aren't sent and count as unfinished, some calls never report back.
+//Calls that were still pending when the recording stopped are left out, there's nothing to
+//compare them with. Unless it's asked for live, the database module sends the replayed calls
+//to a copy of the notes, like Benchmark and StressTest, so recorded writes can't change them.
+//The app's own calls carry on against the real notes meanwhile.
+public class Replayer {
+	private static final String MODULES = "io.trigger.forge.android.modules.";
+
+	private final double speed;
+	private final int maxInFlight;
+	private final long timeout;
+	private final boolean live;
+	private final Map<String, Method> methods = new HashMap<String, Method>();
+	private final Map<String, List<Long>> latencies = new TreeMap<String, List<Long>>();//method -> ns
+	private final Map<String, Integer> errors = new HashMap<String, Integer>();
+
+	public Replayer(double speed, int maxInFlight, long timeout, boolean live) {
+		this.speed = speed;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.timeout = timeout;
+		this.live = live;
+	}
+
+	//One recorded call, standing in for the task the bridge would have made
+	private class ReplayTask extends ForgeTask {
+		private final boolean scratch = !live;
+		private final String method;
+		private final long start = System.nanoTime();
+		private final AtomicBoolean done = new AtomicBoolean(false);
+		private final Semaphore inFlight;
+		private final CountDownLatch finished;
+		ReplayTask(String callid, JSONObject params, String method, Semaphore inFlight, CountDownLatch finished) {
+			super(callid, params);
+			this.method = method;
+			this.inFlight = inFlight;
+			this.finished = finished;
+		}
+		@Override
+		public void success() { done(true); }
+		@Override
+		public void success(Object result) { done(true); }
+		@Override
+		public void error(Object error) { done(false); }
+		@Override
+		public void error(String message, String type, String subtype) { done(false); }
+		@Override
+		public void error(Throwable e) { done(false); }
+		private void done(boolean ok) {
+			if(!done.compareAndSet(false, true))
+				return;
+			record(method, System.nanoTime() - start, ok);
+			inFlight.release();
+			finished.countDown();
+		}
+	}
+
+	//for the database module, whether a call should go to the copy of the notes
+	public static boolean isScratch(ForgeTask task) {
+		return task instanceof ReplayTask && ((ReplayTask) task).scratch;
+	}
+
+	public JSONObject replay(File file) throws Exception {
+		List<JSONObject> calls = read(file);
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		final CountDownLatch finished = new CountDownLatch(calls.size());
+		if(!live)
+			scratch(true);
+		JSONObject report = null;
+		try{
+			report = replay(calls, inFlight, finished);
+			return report;
+		}finally{
+			if(!live && (report == null || finished.getCount() == 0)){
+				scratch(false);//done, or gave up partway and the rest will never finish
+			}else if(!live){
+				//the copy stays a while for calls still going, then goes whether they're done or not,
+				//any that turn up after that get an error instead
+				Log.w("replay", finished.getCount() + " calls still running, keeping the scratch notes for up to " + timeout + "ms");
+				new Thread(new Runnable(){
+					@Override
+					public void run() {
+						try{
+							if(!finished.await(timeout, TimeUnit.MILLISECONDS))
+								Log.w("replay", "giving up on " + finished.getCount() + " calls");
+							scratch(false);
+						}catch(Exception e){
+							e.printStackTrace();
+						}
+					}
+				}, "replay-restore").start();
+			}
+		}
+	}
+
+	//database.API.replayInto, looked up by name like the calls are. No database module, nothing to protect
+	private static void scratch(boolean on) throws Exception {
+		Method replayInto;
+		try{
+			replayInto = Class.forName(MODULES + "database.API").getMethod("replayInto", Context.class, boolean.class);
+		}catch(ClassNotFoundException e){
+			return;
+		}
+		replayInto.invoke(null, ForgeApp.getActivity(), on);
+	}
+
+	private JSONObject replay(List<JSONObject> calls, Semaphore inFlight, CountDownLatch finished) throws JSONException, InterruptedException {
+		long began = SystemClock.uptimeMillis();
+		int skipped = 0, pending = 0, unsent = 0;
+		for(int i = 0; i < calls.size(); i++){
+			JSONObject call = calls.get(i);
+			if("pending".equals(call.optString("s"))){
+				pending++;
+				finished.countDown();
+				continue;
+			}
+			if(speed > 0){
+				long wait = began + (long) (call.getLong("t") / speed) - SystemClock.uptimeMillis();
+				if(wait > 0) Thread.sleep(wait);
+			}
+			if(!inFlight.tryAcquire(timeout, TimeUnit.MILLISECONDS)){
+				//every slot's held by a call that isn't answering, the rest would only queue up behind them
+				unsent = calls.size() - i;
+				for(int j = i; j < calls.size(); j++) finished.countDown();
+				break;
+			}
+			String name = call.getString("m");
+			String params = call.optString("p");
+			ReplayTask task = new ReplayTask("replay" + i, new JSONObject(params.length() > 0 ? params : "{}"),
+					name, inFlight, finished);
+			if(!invoke(name, task)){
+				skipped++;
+				task.done(false);
+			}
+		}
+		boolean completed = finished.await(timeout, TimeUnit.MILLISECONDS);
+
+		JSONObject report = new JSONObject();
+		report.put("calls", calls.size());
+		report.put("skipped", skipped);
+		report.put("pending", pending);
+		report.put("unfinished", (completed ? 0 : finished.getCount()) + unsent);
+		report.put("elapsed", SystemClock.uptimeMillis() - began);
+		report.put("speed", speed);
+		report.put("live", live);
+		JSONObject byMethod = new JSONObject();
+		synchronized(this){
+			for(Map.Entry<String, List<Long>> entry : latencies.entrySet())
+				byMethod.put(entry.getKey(), summarize(entry.getValue(), errors.get(entry.getKey())));
+		}
+		report.put("methods", byMethod);
+		return report;
+	}
+
+	private synchronized void record(String method, long nanos, boolean ok) {
+		List<Long> times = latencies.get(method);
+		if(times == null) latencies.put(method, times = new ArrayList<Long>());
+		times.add(nanos);
+		if(!ok) errors.put(method, errors.containsKey(method) ? errors.get(method) + 1 : 1);
+	}
+
+	//{count, errors, p50, p90, p99, max, mean} in ms
+	static JSONObject summarize(List<Long> nanos, Integer errors) throws JSONException {
+		List<Long> sorted = new ArrayList<Long>(nanos);
+		Collections.sort(sorted);
+		long total = 0;
+		for(long n : sorted) total += n;
+		JSONObject summary = new JSONObject();
+		summary.put("count", sorted.size());
+		summary.put("errors", errors == null ? 0 : errors);
+		summary.put("p50", percentile(sorted, 0.50));
+		summary.put("p90", percentile(sorted, 0.90));
+		summary.put("p99", percentile(sorted, 0.99));
+		summary.put("max", sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1) / 1e6);
+		summary.put("mean", sorted.isEmpty() ? 0 : total / 1e6 / sorted.size());
+		return summary;
+	}
+
+	//nearest rank, in ms
+	static double percentile(List<Long> sorted, double p) {
+		if(sorted.isEmpty())
+			return 0;
+		int rank = (int) Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank))) / 1e6;
+	}
+
+	private static List<JSONObject> read(File file) throws IOException, JSONException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+		List<JSONObject> calls = new ArrayList<JSONObject>();
+		try{
+			JSONObject header = new JSONObject(in.readLine());
+			if(header.optInt("version") != Recorder.VERSION)
+				throw new IOException("not a recording this version can replay: " + header);
+			for(String line = in.readLine(); line != null; line = in.readLine())
+				if(line.length() > 0) calls.add(new JSONObject(line));
+		}finally{
+			in.close();
+		}
+		//written as they returned, replay them as they were called
+		Collections.sort(calls, new Comparator<JSONObject>(){
+			@Override
+			public int compare(JSONObject a, JSONObject b) {
+				long ta = a.optLong("t"), tb = b.optLong("t");
+				return ta < tb ? -1 : ta == tb ? 0 : 1;
+			}
+		});
+		return calls;
+	}
+
+	//false if there's no such method or its params aren't there, like the bridge would error
+	private boolean invoke(String name, ReplayTask task) {
+		try{
+			Method method = find(name);
+			if(method == null)
+				return false;
+			Annotation[][] annotations = method.getParameterAnnotations();
+			Class<?>[] types = method.getParameterTypes();
+			Object[] args = new Object[types.length];
+			args[0] = task;
+			for(int i = 1; i < types.length; i++){
+				String param = null;
+				for(Annotation a : annotations[i])
+					if(a instanceof ForgeParam) param = ((ForgeParam) a).value();
+				if(param == null || !task.params.has(param))
+					return false;
+				args[i] = convert(task.params, param, types[i]);
+			}
+			method.invoke(null, args);
+			return true;
+		}catch(Exception e){
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static Object convert(JSONObject params, String name, Class<?> type) throws JSONException {
+		if(type == String.class) return params.getString(name);
+		if(type == boolean.class) return params.getBoolean(name);
+		if(type == int.class) return params.getInt(name);
+		if(type == long.class) return params.getLong(name);
+		if(type == double.class) return params.getDouble(name);
+		if(type == JSONObject.class) return params.getJSONObject(name);
+		if(type == JSONArray.class) return params.getJSONArray(name);
+		if(type == JsonArray.class || type == JsonObject.class || type == JsonElement.class){
+			JsonElement parsed = new JsonParser().parse(params.get(name).toString());
+			return type == JsonArray.class ? parsed.getAsJsonArray() : type == JsonObject.class ? parsed.getAsJsonObject() : parsed;
+		}
+		throw new JSONException("can't replay a " + type + " param");
+	}
+
+	//"database.query" -> io.trigger.forge.android.modules.database.API.query(ForgeTask, ...)
+	private synchronized Method find(String name) throws ClassNotFoundException {
+		if(methods.containsKey(name))
+			return methods.get(name);
+		Method found = null;
+		int dot = name.lastIndexOf('.');
+		if(dot > 0){
+			Class<?> api = Class.forName(MODULES + name.substring(0, dot) + ".API");
+			for(Method method : api.getMethods()){
+				Class<?>[] types = method.getParameterTypes();
+				if(method.getName().equals(name.substring(dot + 1)) && Modifier.isStatic(method.getModifiers())
+						&& types.length > 0 && types[0] == ForgeTask.class){
+					found = method;
+					break;
+				}
+			}
+		}
+		methods.put(name, found);
+		return found;
+	}
+}
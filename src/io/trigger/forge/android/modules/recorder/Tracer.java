@@ -0,0 +1,226 @@
+package io.trigger.forge.android.modules.recorder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+//Opt-in tracing of bridge calls. For every call it keeps spans for
+//	bridge: the synchronous part, on the bridge thread
+//	queued/run: each hop to the UI thread or a background task it makes (see wrap), how long
+//	  it sat waiting and how long it ran, and how long after the call it got going
+//	call: from the bridge getting it to JS collecting the result
+//and a stall span whenever the UI thread misses frames, listing the calls running over it.
+//Spans go into a fixed size ring, newest overwriting oldest, written without locks, and come
+//out in the Trace Event Format chrome://tracing and Perfetto read.
+public class Tracer {
+	public static final int CAPACITY = 8192;//power of two
+	static final long FRAME_NS = 16666667;
+
+	private static volatile boolean enabled = false;
+	private static final AtomicReferenceArray<Span> ring = new AtomicReferenceArray<Span>(CAPACITY);
+	private static final AtomicLong written = new AtomicLong();
+	//callid -> the call as it came in, until JS collects its result
+	private static final ConcurrentHashMap<String, Call> inFlight = new ConcurrentHashMap<String, Call>();
+	//the call the bridge thread is dispatching right now, so wrap knows who's asking
+	private static final ThreadLocal<Call> current = new ThreadLocal<Call>();
+	private static final Handler ui = new Handler(Looper.getMainLooper());
+
+	static class Call {
+		final String callid, method;
+		final long arrived = System.nanoTime();
+		Call(String callid, String method) {
+			this.callid = callid;
+			this.method = method;
+		}
+	}
+
+	static class Span {
+		final String name, category, thread;
+		final int tid;
+		final long start, duration;
+		final String callid;
+		final long extra;//queued: ns since the call arrived, stall: frames missed
+		Span(String name, String category, long start, long duration, String callid, long extra) {
+			this.name = name;
+			this.category = category;
+			this.start = start;
+			this.duration = duration;
+			this.callid = callid;
+			this.extra = extra;
+			this.tid = Process.myTid();
+			this.thread = Thread.currentThread().getName();
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	static synchronized void enable(boolean on) {
+		if(on == enabled)
+			return;
+		enabled = on;
+		inFlight.clear();
+		ui.post(restart);
+	}
+
+	//On the UI thread, so it can't race a heartbeat that's running. due starts again from
+	//nothing, or the first beat after being switched back on would count the time it was off
+	private static final Runnable restart = new Runnable(){
+		@Override
+		public void run() {
+			ui.removeCallbacks(heartbeat);
+			due = 0;
+			if(enabled)
+				ui.post(heartbeat);
+		}
+	};
+
+	//Wraps work a bridge call hands to another thread, call it while the call is being dispatched.
+	//Just gives back r when tracing's off, or when there's no call to pin it on
+	public static Runnable wrap(final Runnable r) {
+		final Call call = enabled ? current.get() : null;
+		if(call == null)
+			return r;
+		final long posted = System.nanoTime();
+		return new Runnable(){
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				add(new Span(call.method, "queued", posted, start - posted, call.callid, start - call.arrived));
+				try{
+					r.run();
+				}finally{
+					add(new Span(call.method, "run", start, System.nanoTime() - start, call.callid, 0));
+				}
+			}
+		};
+	}
+
+	static void dispatching(String callid, String method) {
+		if(!enabled || method.startsWith("recorder."))
+			return;
+		Call call = new Call(callid, method);
+		inFlight.put(callid, call);
+		current.set(call);
+	}
+
+	static void dispatched(String callid) {
+		Call call = current.get();
+		current.remove();
+		if(call != null && enabled)
+			add(new Span(call.method, "bridge", call.arrived, System.nanoTime() - call.arrived, callid, 0));
+	}
+
+	static void returned(String callid, String status) {
+		Call call = inFlight.remove(callid);
+		if(call != null && enabled)
+			add(new Span(call.method, "call", call.arrived, System.nanoTime() - call.arrived, callid, 0));
+	}
+
+	private static void add(Span span) {
+		ring.set((int) (written.getAndIncrement() & (CAPACITY - 1)), span);
+	}
+
+	//Posts itself once a frame while tracing's on. Running late means the UI thread was busy
+	//with something else for that long, so that's a stall
+	private static long due = 0;//UI thread only
+	private static final Runnable heartbeat = new Runnable(){
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			if(due > 0 && now - due > FRAME_NS){
+				long start = due - FRAME_NS;
+				add(new Span("stall", "frame", start, now - start, null, (now - due) / FRAME_NS));
+			}
+			if(!enabled){
+				due = 0;
+				return;
+			}
+			due = now + FRAME_NS;
+			ui.postDelayed(this, FRAME_NS / 1000000);
+		}
+	};
+
+	//Oldest first. The ring might be mid-overwrite, that costs at most a span or two
+	static List<Span> snapshot() {
+		long end = written.get();
+		long begin = Math.max(0, end - CAPACITY);
+		List<Span> spans = new ArrayList<Span>((int) (end - begin));
+		for(long i = begin; i < end; i++){
+			Span span = ring.get((int) (i & (CAPACITY - 1)));
+			if(span != null) spans.add(span);
+		}
+		return spans;
+	}
+
+	//{file, spans, dropped}
+	static JSONObject dump(File to) throws IOException, JSONException {
+		List<Span> spans = snapshot();
+		long dropped = Math.max(0, written.get() - CAPACITY);
+		int pid = Process.myPid();
+		to.getParentFile().mkdirs();
+		Writer out = new OutputStreamWriter(new FileOutputStream(to), "UTF-8");
+		try{
+			out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+			for(int i = 0; i < spans.size(); i++){
+				Span span = spans.get(i);
+				JSONObject event = new JSONObject();
+				event.put("name", span.name);
+				event.put("cat", span.category);
+				event.put("ph", "X");
+				event.put("ts", span.start / 1000);
+				event.put("dur", Math.max(1, span.duration / 1000));
+				event.put("pid", pid);
+				event.put("tid", span.tid);
+				JSONObject args = new JSONObject();
+				if(span.callid != null) args.put("callid", span.callid);
+				args.put("thread", span.thread);
+				if(span.category.equals("queued")) args.put("sinceCallMs", span.extra / 1e6);
+				if(span.category.equals("frame")){
+					args.put("missedFrames", span.extra);
+					args.put("overlapping", overlapping(span, spans));
+				}
+				event.put("args", args);
+				out.write(event.toString());
+				out.write(i < spans.size() - 1 ? ",\n" : "\n");
+			}
+			out.write("]}\n");
+		}finally{
+			out.close();
+		}
+		JSONObject result = new JSONObject();
+		result.put("file", to.getAbsolutePath());
+		result.put("spans", spans.size());
+		result.put("dropped", dropped);
+		return result;
+	}
+
+	//the calls that were doing something on the UI thread, or anywhere, while it stalled
+	private static JSONArray overlapping(Span stall, List<Span> spans) {
+		JSONArray calls = new JSONArray();
+		long end = stall.start + stall.duration;
+		for(Span span : spans){
+			if(span.callid == null || span.category.equals("call") || span.category.equals("queued"))
+				continue;
+			if(span.start < end && span.start + span.duration > stall.start)
+				calls.put(span.name + (span.tid == stall.tid ? " (ui)" : "") + " " + span.callid);
+		}
+		return calls;
+	}
+}